@@ -0,0 +1,80 @@
+package io.rootmos.audiojournal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs tasks on a pool of threads and collects what they produce, handing
+// it to the sink in batches. The queue in front of the pool is bounded and
+// a full queue has the submitter run the task itself, which bounds the
+// backlog when tasks are submitted faster than they're done (e.g. while
+// walking a directory or paging through a listing).
+//
+// The sink is called with the executor's lock held, by one thread at a
+// time but not necessarily the submitting one. Callers that report other
+// things (e.g. failures) to the same listener synchronize on the executor
+// too.
+class BatchingExecutor<T> {
+    public static final int BATCH = 32;
+    public static final int QUEUE = 64;
+
+    public interface Sink<T> {
+        void flush(List<T> batch);
+    }
+
+    private final Sink<T> sink;
+    private final ThreadPoolExecutor pool;
+
+    // guarded by this
+    private List<T> batch = new ArrayList<>(BATCH);
+
+    public BatchingExecutor(int threads, Sink<T> sink) {
+        this.sink = sink;
+        pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public void execute(Runnable r) { pool.execute(r); }
+
+    public synchronized void add(T t) {
+        batch.add(t);
+        if(batch.size() == BATCH) flush();
+    }
+
+    // waits for everything submitted and flushes what's left
+    public void finish() {
+        awaitTermination(pool);
+        synchronized(this) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if(batch.isEmpty()) return;
+        List<T> b = batch;
+        batch = new ArrayList<>(BATCH);
+        sink.flush(b);
+    }
+
+    // shuts down the executor and waits for it without giving up when
+    // interrupted, restoring the interrupt once it's done
+    public static void awaitTermination(ExecutorService ex) {
+        ex.shutdown();
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    if(ex.awaitTermination(1, TimeUnit.DAYS)) return;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import org.apache.commons.codec.binary.Hex;
+
+// Manifests of the sounds in the bucket, one per year (of the sounds'
+// dates) at manifests/<year> holding a list of SoundRecords, so that
+// syncing the bucket takes a listing of the manifests and a conditional GET
+// of each instead of a GET per sound.
+//
+// The uploader adds every sound it uploads to its year's manifest, seeding
+// one that's missing from a full sync (see BucketSync). The manifests
+// fetched are cached along with their ETags and only fetched again (with
+// If-None-Match) when they've changed. They're only written if they're
+// still at the ETag they were read at (If-Match), so that racing uploads
+// retry rather than drop each other's sounds.
+//
+// What the manifests can't know about (sounds uploaded by other means,
+// objects removed from the bucket) is picked up by the clients' periodic
+// full syncs, which repair the manifests that disagree with them without
+// dropping the sounds uploaded while they ran.
+class BucketManifest {
+    private static final String PREFIX = "manifests/";
+
+    private static final Metrics.Counter FETCHED =
+        Metrics.counter("manifest_fetched");
+    private static final Metrics.Counter NOT_MODIFIED =
+        Metrics.counter("manifest_not_modified");
+    private static final Metrics.Counter UPDATED =
+        Metrics.counter("manifest_updated");
+    private static final Metrics.Counter CONFLICTS =
+        Metrics.counter("manifest_conflicts");
+    private static final Metrics.Counter REPAIRED =
+        Metrics.counter("manifest_repaired");
+
+    private static final int BATCH = 32;
+    private static final int ATTEMPTS = 5;
+
+    // a manifest's sounds and the ETag they were read at (null if unknown)
+    private static class Manifest {
+        final List<Sound> sounds;
+        final String etag;
+
+        Manifest(List<Sound> sounds, String etag) {
+            this.sounds = sounds;
+            this.etag = etag;
+        }
+    }
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final Path upstream;
+    private final Path cache;
+
+    public BucketManifest(AmazonS3 s3, String bucket, Path upstream) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.upstream = upstream;
+        this.cache = upstream.resolve("manifests");
+    }
+
+    // the sounds of all the manifests, or null if there are none
+    public List<Sound> sync(BucketSync.Listener l) throws IOException {
+        long t = System.nanoTime();
+
+        List<String> keys = list();
+        if(keys.isEmpty()) {
+            Log.i(TAG, "no manifests: s3://" + bucket + "/" + PREFIX);
+            return null;
+        }
+
+        List<Sound> ss = new ArrayList<>();
+        for(String k : keys) {
+            Manifest m = fetch(k);
+            if(m == null) {
+                throw new IOException("manifest disappeared: " + k);
+            }
+
+            ss.addAll(m.sounds);
+            if(l != null) {
+                for(int i = 0; i < m.sounds.size(); i += BATCH) {
+                    l.found(new ArrayList<>(m.sounds.subList(i,
+                                    Math.min(m.sounds.size(), i + BATCH))));
+                }
+            }
+        }
+
+        Log.i(TAG, String.format("manifest sync: sounds=%d manifests=%d %.2fms",
+                    ss.size(), keys.size(), (System.nanoTime() - t) / 1e6));
+        return ss;
+    }
+
+    // adds (or replaces) the uploaded sound in its year's manifest
+    public void add(Sound s) throws IOException {
+        final int year = s.getDate().getYear();
+        String k = PREFIX + year;
+
+        List<Sound> seed = null;
+        for(int i = 0; i < ATTEMPTS; ++i) {
+            Manifest m = fetch(k);
+
+            List<Sound> ss;
+            if(m != null) {
+                ss = m.sounds;
+            } else {
+                if(seed == null) {
+                    Log.i(TAG, "seeding manifest: s3://" + bucket + "/" + k);
+                    seed = new ArrayList<>();
+                    for(Sound o :
+                            new BucketSync(s3, bucket, upstream).sync(null)) {
+                        if(o.getDate().getYear() == year) seed.add(o);
+                    }
+                }
+                ss = seed;
+            }
+
+            List<Sound> ns = new ArrayList<>(ss.size() + 1);
+            for(Sound o : ss) {
+                if(!Arrays.equals(o.getSHA1(), s.getSHA1())) ns.add(o);
+            }
+            ns.add(s);
+
+            if(put(k, ns, m)) return;
+            Log.i(TAG, "manifest changed meanwhile, retrying: " + k);
+        }
+
+        throw new IOException("unable to update manifest: " + k);
+    }
+
+    // the SHA-1s of the sounds in the manifests, to repair them against a
+    // full sync started afterwards
+    public Set<String> snapshot() throws IOException {
+        Set<String> hs = new HashSet<>();
+        for(String k : list()) {
+            Manifest m = fetch(k);
+            if(m == null) continue;
+            for(Sound s : m.sounds) hs.add(Hex.encodeHexString(s.getSHA1()));
+        }
+        return hs;
+    }
+
+    // rewrites the manifests that disagree with the sounds of a full sync
+    // (see BucketSync), unless they've changed since they were compared.
+    // Sounds the sync didn't see are only dropped if they were in the
+    // manifests before it started (see snapshot): the others were added
+    // by uploads meanwhile, whose sidecars the listing might have missed.
+    public void repair(List<Sound> all, Set<String> before)
+            throws IOException {
+        Map<String, List<Sound>> ys = new TreeMap<>();
+        Set<String> seen = new HashSet<>();
+        for(String k : list()) {
+            ys.put(k, new ArrayList<Sound>());
+        }
+        for(Sound s : all) {
+            String k = PREFIX + s.getDate().getYear();
+            List<Sound> ss = ys.get(k);
+            if(ss == null) {
+                ss = new ArrayList<>();
+                ys.put(k, ss);
+            }
+            ss.add(s);
+            seen.add(Hex.encodeHexString(s.getSHA1()));
+        }
+
+        for(Map.Entry<String, List<Sound>> e : ys.entrySet()) {
+            Manifest m = fetch(e.getKey());
+
+            List<Sound> ss = e.getValue();
+            int kept = 0;
+            if(m != null) {
+                for(Sound s : m.sounds) {
+                    String h = Hex.encodeHexString(s.getSHA1());
+                    if(!seen.contains(h) && !before.contains(h)) {
+                        ss.add(s);
+                        kept += 1;
+                    }
+                }
+            }
+
+            if(m != null && render(m.sounds).equals(render(ss))) continue;
+
+            if(put(e.getKey(), ss, m)) {
+                REPAIRED.inc();
+                Log.i(TAG, String.format(
+                            "repaired manifest: s3://%s/%s had=%d has=%d "
+                            + "kept=%d", bucket, e.getKey(),
+                            m != null ? m.sounds.size() : 0, ss.size(), kept));
+            } else {
+                Log.i(TAG, "manifest changed meanwhile, not repairing: "
+                        + e.getKey());
+            }
+        }
+    }
+
+    private static Set<String> render(List<Sound> ss) {
+        Set<String> rs = new HashSet<>();
+        for(Sound s : ss) rs.add(s.toJSON());
+        return rs;
+    }
+
+    private List<String> list() {
+        List<String> keys = new ArrayList<>();
+        ObjectListing ol = s3.listObjects(new ListObjectsRequest()
+                .withBucketName(bucket).withPrefix(PREFIX));
+        while(true) {
+            for(S3ObjectSummary os : ol.getObjectSummaries()) {
+                keys.add(os.getKey());
+            }
+            if(!ol.isTruncated()) break;
+            ol = s3.listNextBatchOfObjects(ol);
+        }
+        return keys;
+    }
+
+    // writes the manifest unless it's changed since it was read as m (null
+    // if it was missing), returns whether it was written
+    private boolean put(String k, List<Sound> ss, Manifest m)
+            throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        SoundRecords.writeList(bs, ss);
+        byte[] bytes = bs.toByteArray();
+
+        ObjectMetadata md = new ObjectMetadata();
+        md.setContentLength(bytes.length);
+        md.setContentType("application/octet-stream");
+        if(m == null) {
+            md.setHeader("If-None-Match", "*");
+        } else if(m.etag != null) {
+            md.setHeader("If-Match", "\"" + m.etag + "\"");
+        }
+
+        PutObjectResult r;
+        long t = System.nanoTime();
+        try {
+            r = s3.putObject(bucket, k, new ByteArrayInputStream(bytes), md);
+        } catch(AmazonS3Exception e) {
+            if(e.getStatusCode() == 412 || e.getStatusCode() == 409) {
+                CONFLICTS.inc();
+                return false;
+            }
+            throw e;
+        } finally {
+            UploadService.timed(t);
+        }
+        UPDATED.inc();
+
+        synchronized(BucketManifest.class) {
+            store(k, new ByteArrayInputStream(bytes), r.getETag());
+        }
+        Log.i(TAG, String.format("updated manifest: s3://%s/%s sounds=%d",
+                    bucket, k, ss.size()));
+        return true;
+    }
+
+    // the manifest, from the cache if unchanged, or null if it's missing
+    private Manifest fetch(String k) throws IOException {
+        synchronized(BucketManifest.class) {
+            Path f = cached(k);
+            Path e = f.resolveSibling(f.getFileName() + ".etag");
+
+            String etag = null;
+            if(Files.exists(f)) {
+                try {
+                    etag = new String(Files.readAllBytes(e),
+                            StandardCharsets.US_ASCII);
+                } catch(NoSuchFileException ex) {
+                    etag = null;
+                }
+            }
+
+            GetObjectRequest req = new GetObjectRequest(bucket, k);
+            if(etag != null) {
+                req.setNonmatchingETagConstraints(
+                        Collections.singletonList(etag));
+            }
+
+            S3Object o;
+            long t = System.nanoTime();
+            try {
+                o = s3.getObject(req);
+            } catch(AmazonS3Exception ex) {
+                if(ex.getStatusCode() == 404) return null;
+                throw ex;
+            } finally {
+                UploadService.timed(t);
+            }
+
+            if(o == null) {
+                NOT_MODIFIED.inc();
+                Log.d(TAG, String.format(
+                            "using cached manifest: s3://%s/%s etag=%s",
+                            bucket, k, etag));
+            } else {
+                FETCHED.inc();
+                etag = o.getObjectMetadata().getETag();
+                Log.d(TAG, String.format(
+                            "fetched manifest: s3://%s/%s etag=%s",
+                            bucket, k, etag));
+                try(InputStream is = o.getObjectContent()) {
+                    store(k, is, etag);
+                }
+            }
+
+            try(InputStream is = Files.newInputStream(f)) {
+                return new Manifest(SoundRecords.readList(is), etag);
+            }
+        }
+    }
+
+    private void store(String k, InputStream is, String etag)
+            throws IOException {
+        Path f = cached(k);
+        Path e = f.resolveSibling(f.getFileName() + ".etag");
+        Files.createDirectories(cache);
+
+        // the ETag's removed first so that it never pairs with other content
+        Files.deleteIfExists(e);
+        Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+        Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if(etag != null) {
+            Files.write(e, etag.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private Path cached(String k) {
+        return cache.resolve(k.substring(PREFIX.length()));
+    }
+}
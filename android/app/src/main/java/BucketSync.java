@@ -0,0 +1,167 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+// Lists the metadata sidecars in the bucket and hands their sounds to the
+// listener in batches. The listing is paged through in full, and each page's
+// sidecars are fetched (unless already cached by their ETag) and parsed on a
+// few threads while the next page is listed (see BatchingExecutor). A
+// sidecar that can't be fetched or parsed is logged and counted and doesn't
+// stop the others.
+//
+// The listener is called by one thread at a time, but not necessarily the
+// one syncing.
+class BucketSync {
+    private static final Metrics.Histogram SYNC =
+        Metrics.histogram("bucket_sync");
+    private static final Metrics.Counter PAGES =
+        Metrics.counter("bucket_sync_pages");
+    private static final Metrics.Counter FETCHED =
+        Metrics.counter("bucket_sync_fetched");
+    private static final Metrics.Counter CACHED =
+        Metrics.counter("bucket_sync_cached");
+    private static final Metrics.Counter FAILED =
+        Metrics.counter("bucket_sync_failed");
+
+    private static final int FETCHERS = 8;
+
+    public interface Listener {
+        void found(List<Sound> ss);
+    }
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final Path cache;
+
+    // guarded by this
+    private List<Sound> sounds = null;
+    private int failures = 0;
+    private int unfetched = 0;
+
+    public BucketSync(AmazonS3 s3, String bucket, Path cache) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.cache = cache;
+    }
+
+    // whether the last sync fetched every sidecar listed (those that
+    // couldn't be parsed aside)
+    public synchronized boolean isComplete() { return unfetched == 0; }
+
+    public List<Sound> sync(final Listener l) {
+        final BatchingExecutor<Sound> ex = new BatchingExecutor<>(FETCHERS,
+                new BatchingExecutor.Sink<Sound>() {
+                    public void flush(List<Sound> b) {
+                        if(l != null) l.found(b);
+                    }
+                });
+        synchronized(this) {
+            sounds = new ArrayList<>();
+            failures = 0;
+            unfetched = 0;
+        }
+
+        long t = System.nanoTime();
+
+        int pages = 0;
+        try {
+            ObjectListing ol = s3.listObjects(bucket);
+            while(true) {
+                pages += 1;
+                for(final S3ObjectSummary os : ol.getObjectSummaries()) {
+                    if(!os.getKey().endsWith(".json")) continue;
+                    ex.execute(new Runnable() {
+                        public void run() { fetch(os, ex); }
+                    });
+                }
+
+                if(!ol.isTruncated()) break;
+                ol = s3.listNextBatchOfObjects(ol);
+            }
+        } finally {
+            ex.finish();
+        }
+
+        synchronized(this) {
+            long d = System.nanoTime() - t;
+            SYNC.record(d);
+            PAGES.add(pages);
+            FAILED.add(failures);
+            Log.i(TAG, String.format(
+                        "bucket sync: sounds=%d pages=%d failed=%d %.2fms",
+                        sounds.size(), pages, failures, d / 1e6));
+
+            List<Sound> ss = sounds;
+            sounds = null;
+            return ss;
+        }
+    }
+
+    private void fetch(S3ObjectSummary os, BatchingExecutor<Sound> ex) {
+        Sound s;
+        Path f = cache.resolve(os.getETag());
+        try {
+            if(!Files.exists(f)) {
+                Log.d(TAG, String.format(
+                            "fetching metadata: s3://%s/%s etag=%s",
+                            os.getBucketName(), os.getKey(), os.getETag()));
+
+                // so that an interrupted fetch isn't taken to be cached
+                Path tmp = Files.createTempFile(cache, os.getETag(), ".tmp");
+                try {
+                    s3.getObject(new GetObjectRequest(
+                                os.getBucketName(), os.getKey()), tmp.toFile());
+                    Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+                FETCHED.inc();
+            } else {
+                Log.d(TAG, String.format(
+                            "using cached metadata: s3://%s/%s etag=%s",
+                            os.getBucketName(), os.getKey(), os.getETag()));
+                CACHED.inc();
+            }
+        } catch(Exception e) {
+            Log.w(TAG, String.format("unable to fetch metadata: s3://%s/%s",
+                        os.getBucketName(), os.getKey()), e);
+            synchronized(this) {
+                failures += 1;
+                unfetched += 1;
+            }
+            return;
+        }
+
+        try {
+            s = Sound.fromJSON(new String(Files.readAllBytes(f),
+                        StandardCharsets.UTF_8));
+        } catch(Exception e) {
+            Log.w(TAG, String.format("unable to parse metadata: s3://%s/%s",
+                        os.getBucketName(), os.getKey()), e);
+            synchronized(this) {
+                failures += 1;
+            }
+            return;
+        }
+
+        synchronized(this) {
+            sounds.add(s);
+        }
+        ex.add(s);
+    }
+}
@@ -0,0 +1,180 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+// Chooses the AudioRecord buffer size and how many frames to read per call.
+//
+// The buffer is sized to hold BUFFER_SECONDS of audio in whole multiples of
+// the device's minimum buffer. The chunk starts out at Encoder.CHUNK_FRAMES
+// (larger when the template encodes into several formats) and is then
+// adapted every WINDOW_NANOS from what the capture and encoder threads
+// observe: small chunks keep the level meter responsive, large chunks
+// amortize the per-call cost of reading and encoding. So the chunk is
+// doubled when the encoder spends too much of the wall time working or the
+// reads return too irregularly for their period, and halved back towards
+// the meter's latency when there's plenty of room.
+class CapturePlanner {
+    public static final int MIN_CHUNK_FRAMES = 256;
+    public static final int MAX_CHUNK_FRAMES = 4096;
+
+    private static final int BUFFER_SECONDS = 2;
+    private static final float METER_SECONDS = 0.05f;
+    private static final long WINDOW_NANOS = 2000000000L;
+    private static final float LOAD_HIGH = 0.5f;
+    private static final float LOAD_LOW = 0.2f;
+    private static final float JITTER_HIGH = 0.5f;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int minBufferBytes;
+
+    private volatile int bufferFrames = 0;
+    private int minChunk = MIN_CHUNK_FRAMES;
+    private int maxChunk = MAX_CHUNK_FRAMES;
+    private int meterChunk = MIN_CHUNK_FRAMES;
+    private int initialChunk = 0;
+    private volatile int chunk = 0;
+    private volatile int changes = 0;
+
+    // capture side, over the current window
+    private long windowStart = 0;
+    private long reads = 0;
+    private double deviationSquares = 0;
+
+    private volatile double jitterRms = 0;
+    private volatile double jitterMax = 0;
+    private volatile double loadMax = 0;
+
+    // encoder side
+    private final AtomicLong encodeNanos = new AtomicLong(0);
+    private long encodeNanosSeen = 0;
+
+    public CapturePlanner(int sampleRate, int channels, int minBufferBytes,
+            int formats) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.minBufferBytes = Math.max(minBufferBytes, 2*channels);
+
+        // the device reads in periods of about half its minimum buffer,
+        // asking for less than that just means more wakeups
+        int period = this.minBufferBytes / (2*channels) / 2;
+        while(minChunk < period && minChunk < MAX_CHUNK_FRAMES) {
+            minChunk *= 2;
+        }
+
+        while(meterChunk * 2 <= sampleRate * METER_SECONDS) {
+            meterChunk *= 2;
+        }
+
+        int c = Encoder.CHUNK_FRAMES;
+        for(int i = 1; i < formats; ++i) c *= 2;
+        chunk = clamp(Math.min(c, Math.max(meterChunk, Encoder.CHUNK_FRAMES)));
+        initialChunk = chunk;
+    }
+
+    // what to ask the AudioRecord for first
+    public int getBufferBytes() {
+        int bytes = BUFFER_SECONDS * sampleRate * channels * 2;
+        return (bytes + minBufferBytes - 1) / minBufferBytes * minBufferBytes;
+    }
+
+    public boolean fits(int frames) {
+        return frames >= BUFFER_SECONDS * sampleRate;
+    }
+
+    // the buffer actually configured: never read more than a quarter of it
+    // at a time so the device always has room to write into
+    public void setBufferFrames(int frames) {
+        bufferFrames = frames;
+        while(maxChunk > minChunk && maxChunk > frames / 4) {
+            maxChunk /= 2;
+        }
+        chunk = clamp(chunk);
+        initialChunk = chunk;
+
+        Log.i(TAG, String.format(
+            "capture plan: buffer=%d frames chunk=%d frames (%d..%d, meter=%d)",
+            bufferFrames, chunk, minChunk, maxChunk, meterChunk));
+    }
+
+    // large enough for any chunk the planner might choose
+    public int getMaxChunkSamples() { return MAX_CHUNK_FRAMES * channels; }
+
+    public int getChunkFrames() { return chunk; }
+    public int getChunkBytes() { return chunk * channels * 2; }
+
+    // capture thread: a read returned the given frames, the given time
+    // after the previous one did
+    public void read(long nanos, int frames) {
+        long now = System.nanoTime();
+        if(windowStart == 0) {
+            windowStart = now;
+            return;
+        }
+
+        double expected = 1e9 * frames / sampleRate;
+        double d = Math.abs(nanos - expected);
+        deviationSquares += d * d;
+        reads += 1;
+        if(d / 1e6 > jitterMax) jitterMax = d / 1e6;
+
+        long w = now - windowStart;
+        if(w >= WINDOW_NANOS) {
+            adapt(w, expected);
+            windowStart = now;
+            reads = 0;
+            deviationSquares = 0;
+        }
+    }
+
+    // encoder thread: encoding a chunk took the given time
+    public void encoded(long nanos) {
+        encodeNanos.addAndGet(nanos);
+    }
+
+    private void adapt(long window, double period) {
+        long e = encodeNanos.get();
+        double load = (double)(e - encodeNanosSeen) / window;
+        encodeNanosSeen = e;
+        if(load > loadMax) loadMax = load;
+
+        double rms = Math.sqrt(deviationSquares / Math.max(1, reads));
+        jitterRms = Math.max(jitterRms, rms / 1e6);
+        double jitter = rms / period;
+
+        int c = chunk;
+        if(load > LOAD_HIGH || jitter > JITTER_HIGH) {
+            c = clamp(c * 2);
+        } else if(load < LOAD_LOW && jitter < JITTER_HIGH / 2
+                && c > meterChunk) {
+            c = clamp(c / 2);
+        }
+
+        if(c != chunk) {
+            Log.i(TAG, String.format(
+                "capture chunk: %d -> %d frames (load=%.2f jitter=%.2f)",
+                chunk, c, load, jitter));
+            chunk = c;
+            changes += 1;
+        }
+    }
+
+    private int clamp(int c) {
+        return Math.max(minChunk, Math.min(maxChunk, c));
+    }
+
+    public void collectStats(SessionStats stats) {
+        stats.put("capture_buffer_frames", bufferFrames);
+        stats.put("capture_min_buffer_bytes", minBufferBytes);
+        stats.put("capture_chunk_frames_initial", initialChunk);
+        stats.put("capture_chunk_frames", chunk);
+        stats.put("capture_chunk_changes", changes);
+        stats.put("capture_read_jitter_rms_ms", jitterRms);
+        stats.put("capture_read_jitter_max_ms", jitterMax);
+        stats.put("capture_encode_load_max", loadMax);
+    }
+}
@@ -0,0 +1,115 @@
+package io.rootmos.audiojournal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-producer/single-consumer ring of direct buffers: the capture thread
+// reads into acquire()'d slots and the encoding thread drains them via take()
+class CaptureRing {
+    private static final long PARK_NANOS = 5000000;
+
+    private final ByteBuffer[] slots;
+    private final ShortBuffer[] views;
+    private final int[] lengths;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    private volatile Thread producer = null;
+    private volatile Thread consumer = null;
+
+    private volatile int highWaterMark = 0;
+    private final AtomicLong overruns = new AtomicLong(0);
+
+    public CaptureRing(int slots, int bytesPerSlot) {
+        if(Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException(
+                    "slot count not a power of two: " + slots);
+        }
+
+        this.slots = new ByteBuffer[slots];
+        this.views = new ShortBuffer[slots];
+        this.lengths = new int[slots];
+        this.mask = slots - 1;
+
+        for(int i = 0; i < slots; ++i) {
+            this.slots[i] = ByteBuffer.allocateDirect(bytesPerSlot)
+                .order(ByteOrder.nativeOrder());
+            this.views[i] = this.slots[i].asShortBuffer();
+        }
+    }
+
+    public int getCapacity() { return slots.length; }
+    public int getOccupancy() { return (int)(head.get() - tail.get()); }
+    public int getHighWaterMark() { return highWaterMark; }
+    public long getOverruns() { return overruns.get(); }
+
+    // producer side: blocks while the consumer is a full ring behind
+    public ByteBuffer acquire() {
+        long h = head.get();
+        if(h - tail.get() == slots.length) {
+            overruns.incrementAndGet();
+            producer = Thread.currentThread();
+            while(h - tail.get() == slots.length && !closed) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            producer = null;
+        }
+
+        ByteBuffer b = slots[(int)(h & mask)];
+        b.clear();
+        return b;
+    }
+
+    public void publish(int bytes) {
+        long h = head.get();
+        lengths[(int)(h & mask)] = bytes;
+        head.lazySet(h + 1);
+
+        int o = (int)(h + 1 - tail.get());
+        if(o > highWaterMark) highWaterMark = o;
+
+        Thread c = consumer;
+        if(c != null) LockSupport.unpark(c);
+    }
+
+    public void close() {
+        closed = true;
+
+        Thread c = consumer;
+        if(c != null) LockSupport.unpark(c);
+    }
+
+    // consumer side: copies the oldest chunk into samples and returns the
+    // number of samples copied, or -1 when the ring is closed and drained
+    public int take(short[] samples) {
+        long t = tail.get();
+        if(t == head.get()) {
+            consumer = Thread.currentThread();
+            while(t == head.get()) {
+                if(closed) {
+                    if(t == head.get()) return -1;
+                    break;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+
+        int i = (int)(t & mask);
+        int n = lengths[i] / 2;
+        ShortBuffer v = views[i];
+        v.clear();
+        v.get(samples, 0, n);
+        tail.lazySet(t + 1);
+
+        Thread p = producer;
+        if(p != null) LockSupport.unpark(p);
+
+        return n;
+    }
+}
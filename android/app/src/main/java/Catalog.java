@@ -0,0 +1,228 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+// Index of the local metadata sidecars, kept on disk so that listing them
+// doesn't mean parsing every one of them: a scan walks the directory, but
+// only sidecars that are new or whose size or modification time changed
+// are read again (in parallel, see SidecarScanner), the rest are taken from
+// the index. Should the index be missing or unreadable it's rebuilt by the
+// scan.
+//
+// File format (big-endian): "AJCI", version (short), and then in the
+// encoding of SoundRecords the number of entries (varint) and per entry the
+// sidecar's path (relative to the scanned directory), size and mtime (ms,
+// varints) and the Sound.
+class Catalog {
+    private static final int MAGIC = 0x414a4349;
+    private static final short VERSION = 2;
+
+    private static final Metrics.Histogram SCAN =
+        Metrics.histogram("catalog_scan");
+    private static final Metrics.Counter PARSED =
+        Metrics.counter("catalog_parsed");
+    private static final Metrics.Counter FAILED =
+        Metrics.counter("catalog_failed");
+
+    private static final int BATCH = 32;
+
+    // receives the sounds in batches as a scan finds them: those read
+    // again as they're parsed, the others once the directory's been walked
+    public interface Listener {
+        void found(List<Sound> ss);
+    }
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final Sound sound;
+
+        Entry(long size, long mtime, Sound sound) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sound = sound;
+        }
+    }
+
+    private final Path file;
+    private final Path root;
+
+    public Catalog(Path file, Path root) {
+        this.file = file;
+        this.root = root;
+    }
+
+    // the sounds with sidecars under the root, updating the index
+    public List<Sound> scan() throws IOException {
+        return scan(null);
+    }
+
+    public List<Sound> scan(final Listener l) throws IOException {
+        synchronized(Catalog.class) {
+            long t = System.nanoTime();
+            final Map<String, Entry> old = load();
+
+            // sizes and mtimes of the sidecars being parsed
+            final Map<Path, long[]> stats = new HashMap<>();
+            final Map<String, Entry> es = new HashMap<>();
+            final List<Sound> ss = new ArrayList<>();
+            final Set<Path> files = new HashSet<>();
+
+            final SidecarScanner sc = new SidecarScanner(
+                    new SidecarScanner.Listener() {
+                public void parsed(List<Sound> b) {
+                    synchronized(es) {
+                        for(Sound s : b) {
+                            long[] st = stats.get(s.getMetadata());
+                            es.put(root.relativize(s.getMetadata()).toString(),
+                                    new Entry(st[0], st[1], s));
+                        }
+                        ss.addAll(b);
+                    }
+                    if(l != null) l.found(b);
+                }
+
+                public void failed(Path m, Exception e) { }
+            });
+
+            final List<String> cached = new ArrayList<>();
+            int failed = 0;
+            try {
+                if(Files.isDirectory(root)) {
+                    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path p,
+                                BasicFileAttributes attrs) {
+                            files.add(p);
+                            if(!p.getFileName().toString().endsWith(".json")) {
+                                return FileVisitResult.CONTINUE;
+                            }
+
+                            String k = root.relativize(p).toString();
+                            long size = attrs.size();
+                            long mtime = attrs.lastModifiedTime().toMillis();
+                            Entry e = old.get(k);
+                            if(e != null && e.size == size && e.mtime == mtime) {
+                                cached.add(k);
+                            } else {
+                                synchronized(es) {
+                                    stats.put(p, new long[] { size, mtime });
+                                }
+                                sc.submit(p);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                }
+            } finally {
+                failed = sc.finish();
+            }
+            int parsed = ss.size();
+
+            List<Sound> b = new ArrayList<>(BATCH);
+            for(String k : cached) {
+                Entry e = old.get(k);
+                Path m = root.resolve(k);
+                Sound s = e.sound;
+                s.setMetadata(m);
+                Path local = m.resolveSibling(s.getFilename());
+                s.setLocal(files.contains(local) ? local : null);
+
+                es.put(k, e);
+                ss.add(s);
+                b.add(s);
+                if(b.size() == BATCH && l != null) {
+                    l.found(b);
+                    b = new ArrayList<>(BATCH);
+                }
+            }
+            if(!b.isEmpty() && l != null) l.found(b);
+
+            if(parsed > 0 || es.size() != old.size()) {
+                save(es);
+            }
+
+            long d = System.nanoTime() - t;
+            SCAN.record(d);
+            PARSED.add(parsed);
+            FAILED.add(failed);
+            Log.i(TAG, String.format(
+                        "catalog: sounds=%d parsed=%d failed=%d %.2fms",
+                        ss.size(), parsed, failed, d / 1e6));
+            return ss;
+        }
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> es = new HashMap<>();
+        try(DataInputStream i = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file)))) {
+            if(i.readInt() != MAGIC) {
+                throw new IOException("not a catalog");
+            }
+            short v = i.readShort();
+            if(v != VERSION) {
+                throw new IOException("unsupported catalog version: " + v);
+            }
+
+            SoundRecords.Reader r = new SoundRecords.Reader(i);
+            long n = r.readVarLong();
+            for(long k = 0; k < n; ++k) {
+                String p = r.readString();
+                long size = r.readVarLong();
+                long mtime = r.readVarLong();
+                es.put(p, new Entry(size, mtime, r.read()));
+            }
+            return es;
+        } catch(NoSuchFileException e) {
+            Log.i(TAG, "no catalog, rebuilding: " + file);
+        } catch(Exception e) {
+            Log.w(TAG, "unreadable catalog, rebuilding: " + file, e);
+        }
+        return new HashMap<>();
+    }
+
+    private void save(Map<String, Entry> es) {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try(DataOutputStream o = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                o.writeInt(MAGIC);
+                o.writeShort(VERSION);
+                SoundRecords.Writer w = new SoundRecords.Writer(o);
+                w.writeVarLong(es.size());
+                for(Map.Entry<String, Entry> e : es.entrySet()) {
+                    w.writeString(e.getKey());
+                    w.writeVarLong(e.getValue().size);
+                    w.writeVarLong(e.getValue().mtime);
+                    w.write(e.getValue().sound);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Log.w(TAG, "unable to save catalog: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+// SHA-1 and MD5 of a file's bytes, fed in order as they're written, and the
+// MD5 of each of its PART_BYTES parts, from which S3 derives the ETag of a
+// multipart upload with parts of that size.
+class ContentDigest {
+    public static final int PART_BYTES = 8*1024*1024;
+
+    private final MessageDigest sha1 = digest("SHA-1");
+    private final MessageDigest md5 = digest("MD5");
+    private final MessageDigest part = digest("MD5");
+    private final List<byte[]> parts = new ArrayList<>();
+    private long bytes = 0;
+
+    // with partsOnly only the part MD5s are kept up to date
+    private boolean partsOnly = false;
+
+    // part MD5s to take instead of hashing those parts again, from the
+    // index reuseFrom
+    private List<byte[]> reuse = Collections.emptyList();
+    private int reuseFrom = Integer.MAX_VALUE;
+
+    private byte[] sha1Digest = null;
+    private byte[] md5Digest = null;
+
+    // the remaining bytes of b, which is left as it is
+    public void update(ByteBuffer b) {
+        if(sha1Digest != null) {
+            throw new IllegalStateException("digest already finished");
+        }
+
+        ByteBuffer s = b.duplicate();
+        while(s.hasRemaining()) {
+            int n = (int)Math.min(s.remaining(),
+                    PART_BYTES - bytes % PART_BYTES);
+            ByteBuffer c = s.duplicate();
+            c.limit(c.position() + n);
+
+            if(!partsOnly) {
+                sha1.update(c.duplicate());
+                md5.update(c.duplicate());
+            }
+            int i = parts.size();
+            boolean reused = i >= reuseFrom && i < reuse.size();
+            if(!reused) part.update(c);
+
+            s.position(s.position() + n);
+            bytes += n;
+            if(bytes % PART_BYTES == 0) {
+                parts.add(reused ? reuse.get(i) : part.digest());
+            }
+        }
+    }
+
+    // from now on only keep the part MD5s, the whole file's digests are
+    // left unfinished
+    public void updatePartsOnly() { partsOnly = true; }
+
+    public void finish() {
+        if(sha1Digest != null) return;
+        if(partsOnly) {
+            throw new IllegalStateException("only the parts were digested");
+        }
+        if(bytes % PART_BYTES != 0 || bytes == 0) parts.add(part.digest());
+        sha1Digest = sha1.digest();
+        md5Digest = md5.digest();
+    }
+
+    public long getBytes() { return bytes; }
+    public byte[] getSHA1() { finish(); return sha1Digest; }
+    public byte[] getMD5() { finish(); return md5Digest; }
+
+    public List<byte[]> getPartMD5s() {
+        finish();
+        return Collections.unmodifiableList(parts);
+    }
+
+    // as S3 reports it for a multipart upload of the file
+    public String getETag() {
+        finish();
+        MessageDigest e = digest("MD5");
+        for(byte[] p : parts) e.update(p);
+        return Hex.encodeHexString(e.digest()) + "-" + parts.size();
+    }
+
+    public static ContentDigest of(Path p) throws IOException {
+        return of(p, null, 0);
+    }
+
+    // as of(p), but taking the MD5s of the whole parts after the patched
+    // bytes (those before patched) from what was digested while writing
+    public static ContentDigest of(Path p, ContentDigest written,
+            long patched) throws IOException {
+        ContentDigest d = new ContentDigest();
+        if(written != null) {
+            d.reuse = written.parts;
+            d.reuseFrom = (int)((patched + PART_BYTES - 1) / PART_BYTES);
+        }
+
+        ByteBuffer b = ByteBuffer.allocateDirect(256*1024);
+        try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            while(ch.read(b) >= 0) {
+                b.flip();
+                d.update(b);
+                b.clear();
+            }
+        }
+        d.finish();
+        return d;
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(algorithm + " not available", e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import static io.rootmos.audiojournal.Common.TAG;
 import io.rootmos.audiojournal.databinding.TemplateItemEditBinding;
 
 import java.nio.file.Paths;
+import java.util.ArrayList;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -12,6 +13,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 public class EditTemplateActivity extends AppCompatActivity {
@@ -36,13 +38,22 @@ public class EditTemplateActivity extends AppCompatActivity {
         binding.prefixValue.setText(t.getPrefix().toString());
         binding.filenameValue.setText(t.getFilename());
         binding.autoUploadValue.setChecked(t.getAutoUpload());
-
-        if(t.getFormat() == Format.FLAC) {
-            binding.formatValue.check(binding.formatValueFlac.getId());
-        } else if(t.getFormat() == Format.MP3) {
-            binding.formatValue.check(binding.formatValueMp3.getId());
-        } else {
-            throw new RuntimeException("unsupported format");
+        binding.deferEncodingValue.setChecked(t.getDeferEncoding());
+        binding.segmentMinutesValue.setText(
+                Integer.toString(t.getSegmentMinutes()));
+        binding.streamUploadValue.setChecked(t.getStreamUpload());
+        binding.trimSilenceValue.setChecked(t.getTrimSilence());
+        binding.splitSilenceSecondsValue.setText(
+                Integer.toString(t.getSplitSilenceSeconds()));
+
+        for(Format f : t.getFormats()) {
+            if(f == Format.FLAC) {
+                binding.formatValueFlac.setChecked(true);
+            } else if(f == Format.MP3) {
+                binding.formatValueMp3.setChecked(true);
+            } else {
+                throw new RuntimeException("unsupported format");
+            }
         }
 
         setSupportActionBar(binding.appbar.getRoot());
@@ -80,14 +91,30 @@ public class EditTemplateActivity extends AppCompatActivity {
     private void done() {
         Log.i(TAG, "done editing template: " + t.getId());
 
-        Format f = null;
-        int fi = binding.formatValue.getCheckedRadioButtonId();
-        if(fi == binding.formatValueFlac.getId()) {
-            f = Format.FLAC;
-        } else if(fi == binding.formatValueMp3.getId()) {
-            f = Format.MP3;
-        } else {
-            throw new RuntimeException("unsupported format");
+        // the first format is the primary one, prefer the lossless one
+        ArrayList<Format> fs = new ArrayList<>();
+        if(binding.formatValueFlac.isChecked()) fs.add(Format.FLAC);
+        if(binding.formatValueMp3.isChecked()) fs.add(Format.MP3);
+        if(fs.isEmpty()) {
+            Toast.makeText(this, "Choose at least one format",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int segmentMinutes = 0;
+        try {
+            segmentMinutes = Integer.parseInt(
+                    binding.segmentMinutesValue.getText().toString());
+        } catch(NumberFormatException e) {
+            segmentMinutes = 0;
+        }
+
+        int splitSilenceSeconds = 0;
+        try {
+            splitSilenceSeconds = Integer.parseInt(
+                    binding.splitSilenceSecondsValue.getText().toString());
+        } catch(NumberFormatException e) {
+            splitSilenceSeconds = 0;
         }
 
         MetadataTemplate n = new MetadataTemplate(
@@ -95,8 +122,13 @@ public class EditTemplateActivity extends AppCompatActivity {
                 binding.titleTemplateValue.getText().toString(),
                 binding.artistValue.getText().toString(),
                 binding.composerValue.getText().toString(),
-                f,
+                fs.toArray(new Format[0]),
                 binding.autoUploadValue.isChecked(),
+                binding.deferEncodingValue.isChecked(),
+                segmentMinutes,
+                binding.streamUploadValue.isChecked(),
+                binding.trimSilenceValue.isChecked(),
+                splitSilenceSeconds,
                 binding.prefixValue.getText().toString(),
                 binding.filenameValue.getText().toString());
 
@@ -1,69 +1,124 @@
 package io.rootmos.audiojournal;
 
+import static io.rootmos.audiojournal.Common.TAG;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 
-import net.sourceforge.javaflacencoder.FLACEncoder;
-import net.sourceforge.javaflacencoder.FLACFileOutputStream;
 import net.sourceforge.javaflacencoder.StreamConfiguration;
-import net.sourceforge.javaflacencoder.EncodingConfiguration;
+
+import android.util.Log;
 
 import com.naman14.androidlame.AndroidLame;
 import com.naman14.androidlame.LameBuilder;
 
 public abstract class Encoder {
-    public abstract void update(short samples[]) throws IOException;
+    // frames per chunk fed to the encoders, both while recording and when
+    // encoding a raw capture afterwards
+    public static final int CHUNK_FRAMES = 1024;
+
+    // where the tags go in FLAC: after the marker and STREAMINFO, in place
+    // of the PADDING block the encoder ends its header with
+    private static final long FLAC_TAGS_OFFSET = 4 + 4 + 34;
+
+    private static int mp3BufferSize(int frames) {
+        return (int)Math.ceil(1.25 * frames) + 7200;
+    }
+
+    public abstract void update(short samples[], int length)
+        throws IOException;
     public abstract void finalize() throws IOException;
 
-    public abstract int getSamplesCaptured();
-    public abstract int getSamplesEncoded();
+    public void update(short samples[]) throws IOException {
+        update(samples, samples.length);
+    }
+
+    public abstract long getSamplesCaptured();
+    public abstract long getSamplesEncoded();
+
+    public void collectStats(SessionStats stats) { }
+
+    // where the encoder's output goes, null if it isn't backed by a file
+    public OutputStage getStage() { return null; }
 
     public static Encoder PCM16(Format format, Path out, int sampleRate)
             throws IOException {
+        return PCM16(format, out, sampleRate, 0, 0,
+                OutputStage.FsyncPolicy.onStop());
+    }
+
+    public static Encoder PCM16(Format format, Path out, int sampleRate,
+            int threads, float headroom, OutputStage.FsyncPolicy fsync)
+            throws IOException {
+        return PCM16(format, out, sampleRate, threads, headroom, fsync, null);
+    }
+
+    // threads > 0 spreads FLAC frames over that many worker threads and
+    // headroom > 0 lowers the FLAC search effort to keep that fraction of
+    // real-time unused; tags, if any, are written when opening and what's
+    // changed meanwhile when finishing (see StreamTags)
+    public static Encoder PCM16(Format format, Path out, int sampleRate,
+            int threads, float headroom, OutputStage.FsyncPolicy fsync,
+            final StreamTags tags) throws IOException {
+        final OutputStage stage = new OutputStage(out, fsync);
+
         if(format == Format.FLAC) {
-            final FLACEncoder encoder = new FLACEncoder();
             StreamConfiguration sc = new StreamConfiguration();
             sc.setChannelCount(2);
             sc.setSampleRate(sampleRate);
             sc.setBitsPerSample(16);
-            encoder.setStreamConfiguration(sc);
 
-            EncodingConfiguration ec = new EncodingConfiguration();
-            ec.setSubframeType(EncodingConfiguration.SubframeType.EXHAUSTIVE);
-            encoder.setEncodingConfiguration(ec);
+            final FLACFrameEncoder encoder = new FLACFrameEncoder(
+                    threads, sc.getMaxBlockSize(), sampleRate);
+            encoder.setStreamConfiguration(sc);
+            encoder.setAdaptive(FLACFrameEncoder.Effort.EXHAUSTIVE, headroom);
 
-            final FLACFileOutputStream os = new FLACFileOutputStream(
-                    out.toFile());
-            if(!os.isValid()) {
-                throw new RuntimeException("can't open output stream");
-            }
+            // STREAMINFO is rewritten with the totals when closing
+            stage.deferDigest(0);
+            final FLACStageOutputStream os = new FLACStageOutputStream(stage);
             encoder.setOutputStream(os);
-            encoder.openFLACStream();
+            encoder.setStage(stage, 2);
+            encoder.open();
+
+            final boolean tagged = tags != null
+                && writeTags(stage, tags, Format.FLAC, FLAC_TAGS_OFFSET);
+            os.seek(stage.size());
 
             return new Encoder() {
-                private int samples_encoded = 0;
-                private int samples_captured = 0;
+                private volatile long samples_encoded = 0;
+                private volatile long samples_captured = 0;
 
-                public int getSamplesCaptured() { return samples_captured; }
-                public int getSamplesEncoded() { return samples_encoded; }
+                @Override
+                public OutputStage getStage() { return stage; }
 
-                public void update(short samples[]) throws IOException {
-                    int[] is = new int[samples.length];
-                    for(int i = 0; i < samples.length; ++i) {
+                // addSamples copies into the encoder's own block requests,
+                // so a single widened buffer can be reused for every chunk
+                private int[] is = new int[0];
+
+                public long getSamplesCaptured() { return samples_captured; }
+                public long getSamplesEncoded() { return samples_encoded; }
+
+                public void update(short samples[], int length)
+                        throws IOException {
+                    if(is.length < length) {
+                        is = new int[length];
+                    }
+                    for(int i = 0; i < length; ++i) {
                         is[i] = samples[i];
                     }
 
-                    samples_captured += samples.length;
+                    samples_captured += length;
 
-                    encoder.addSamples(is, is.length/2);
+                    encoder.addSamples(is, length/2);
 
                     int enc;
                     if((enc = encoder.fullBlockSamplesAvailableToEncode()) > 0) {
-                        int r = encoder.encodeSamples(enc, false);
+                        int r = encoder.encode(enc, false);
                         samples_encoded += r * 2;
                     }
                 }
@@ -71,11 +126,27 @@ public abstract class Encoder {
                 public void finalize() throws IOException {
                     int s = samples_encoded == samples_captured ? 0 :
                         encoder.samplesAvailableToEncode();
-                    int r = encoder.encodeSamples(s, true);
+                    int r = encoder.encode(s, true);
                     if(r < s) {
-                        encoder.encodeSamples(s, true);
+                        encoder.encode(s, true);
+                    }
+                    if(tagged && tags.isChanged()) {
+                        writeTags(stage, tags, Format.FLAC, FLAC_TAGS_OFFSET);
                     }
                     os.close();
+
+                    Log.i(TAG, String.format(
+                        "flac: threads=%d frames=%d in-flight=%d mean=%.2fms max=%.2fms",
+                        encoder.getThreads(), encoder.getFramesEncoded(),
+                        encoder.getFramesInFlight(),
+                        encoder.getMeanFrameNanos() / 1e6,
+                        encoder.getMaxFrameNanos() / 1e6));
+                }
+
+                @Override
+                public void collectStats(SessionStats stats) {
+                    encoder.collectStats(stats, "flac");
+                    stage.collectStats(stats, "flac");
                 }
             };
         } else if(format == Format.MP3) {
@@ -84,37 +155,136 @@ public abstract class Encoder {
                 .setOutBitrate(320)
                 .build();
 
-            final OutputStream os = Files.newOutputStream(out);
+            final boolean tagged = tags != null
+                && writeTags(stage, tags, Format.MP3, 0);
 
             return new Encoder() {
-                private int samples_encoded = 0;
-                private int samples_captured = 0;
+                private volatile long samples_encoded = 0;
+                private volatile long samples_captured = 0;
+                private long samples_emitted = 0;
+
+                // LAME's worst case output for a chunk of n frames
+                private byte[] bs = new byte[mp3BufferSize(CHUNK_FRAMES)];
+
+                @Override
+                public OutputStage getStage() { return stage; }
+
+                public long getSamplesCaptured() { return samples_captured; }
+                public long getSamplesEncoded() { return samples_encoded; }
 
-                public int getSamplesCaptured() { return samples_captured; }
-                public int getSamplesEncoded() { return samples_encoded; }
+                public void update(short samples[], int length)
+                        throws IOException {
+                    samples_captured += length;
 
-                public void update(short samples[]) throws IOException {
-                    samples_captured += samples.length;
+                    if(bs.length < mp3BufferSize(length/2)) {
+                        bs = new byte[mp3BufferSize(length/2)];
+                    }
 
-                    byte bs[] = new byte[4096];
                     int l = lame.encodeBufferInterLeaved(samples,
-                            samples.length/2, bs);
+                            length/2, bs);
+                    append(l);
+                    samples_encoded += length;
 
-                    os.write(bs, 0, l);
+                    // LAME hands out whole frames only, but holds on to
+                    // samples for those to come: the marks count the
+                    // samples of the frames written
+                    samples_emitted += SessionJournal.mp3Frames(bs, l)
+                        * SessionJournal.MP3_FRAME_SAMPLES * 2;
+                    stage.mark(samples_emitted);
+                }
 
-                    samples_encoded += samples.length;
+                private void append(int l) throws IOException {
+                    if(l < 0) {
+                        throw new IOException("LAME failed: " + l);
+                    }
+                    stage.write(bs, 0, l);
                 }
 
                 public void finalize() throws IOException {
-                    byte bs[] = new byte[4096];
                     int l = lame.flush(bs);
                     lame.close();
-                    os.write(bs, 0, l);
-                    os.close();
+                    append(l);
+
+                    // appended rather than patched into the leading tag,
+                    // which has been digested (and maybe uploaded) by now
+                    ByteBuffer ape = tagged ? tags.renderAPEv2() : null;
+                    if(ape != null) stage.write(ape);
+                    stage.close();
+                }
+
+                @Override
+                public void collectStats(SessionStats stats) {
+                    stage.collectStats(stats, "mp3");
+                }
+            };
+        } else if(format == Format.WAV) {
+            stage.write(WAVFile.header(sampleRate, 2));
+            stage.deferDigest(0);
+
+            return new Encoder() {
+                private volatile long samples_captured = 0;
+                private long bytes = 0;
+
+                private ByteBuffer b = ByteBuffer.allocateDirect(0);
+                private ShortBuffer v = null;
+
+                @Override
+                public OutputStage getStage() { return stage; }
+
+                public long getSamplesCaptured() { return samples_captured; }
+                public long getSamplesEncoded() { return samples_captured; }
+
+                public void update(short samples[], int length)
+                        throws IOException {
+                    if(b.capacity() < 2*length) {
+                        b = ByteBuffer.allocateDirect(2*length)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                        v = b.asShortBuffer();
+                    }
+
+                    v.clear();
+                    v.put(samples, 0, length);
+                    b.clear().limit(2*length);
+                    stage.write(b);
+                    bytes += 2*length;
+
+                    samples_captured += length;
+                    stage.mark(samples_captured);
+                }
+
+                public void finalize() throws IOException {
+                    WAVFile.finish(stage, sampleRate, 2, bytes);
+                    stage.close();
+                }
+
+                @Override
+                public void collectStats(SessionStats stats) {
+                    stage.collectStats(stats, "wav");
                 }
             };
         } else {
+            stage.close();
             throw new IllegalArgumentException("unsupported format");
         }
     }
+
+    // writes the tags at pos (appending when that's the end), returns false
+    // and leaves the file as it is if they don't fit their room
+    private static boolean writeTags(OutputStage stage, StreamTags tags,
+            Format f, long pos) throws IOException {
+        ByteBuffer b;
+        try {
+            b = f == Format.FLAC ? tags.renderFLAC() : tags.renderID3v2();
+        } catch(IOException e) {
+            Log.w(TAG, "unable to tag: " + stage.getPath(), e);
+            return false;
+        }
+
+        if(pos == stage.size()) {
+            stage.write(b);
+        } else {
+            stage.writeAt(b, pos);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,271 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import net.sourceforge.javaflacencoder.BlockEncodeRequest;
+import net.sourceforge.javaflacencoder.EncodingConfiguration;
+import net.sourceforge.javaflacencoder.EncodingConfiguration.SubframeType;
+import net.sourceforge.javaflacencoder.FLACEncoder;
+
+// FLACEncoder which, given threads > 0, hands full blocks to the library's
+// frame thread pool (frames are written back in order and the last, partial
+// one is encoded by the caller, so the stream is identical to the
+// single-threaded one) and keeps track of frames in flight
+// and the time each frame took from submission until it was written.
+//
+// The frame times are also compared against the real-time duration of a
+// block: the subframe search effort is stepped down when encoding eats into
+// the configured headroom and back up when there's plenty to spare.
+class FLACFrameEncoder extends FLACEncoder {
+    private static final int TIMESTAMPS = 64;
+    private static final int SETTLE_FRAMES = 16;
+
+    public enum Effort {
+        EXHAUSTIVE(SubframeType.EXHAUSTIVE, 12),
+        LPC_12(SubframeType.LPC, 12),
+        LPC_8(SubframeType.LPC, 8),
+        LPC_4(SubframeType.LPC, 4),
+        FIXED(SubframeType.FIXED, 0),
+        VERBATIM(SubframeType.VERBATIM, 0);
+
+        private SubframeType type;
+        private int maxLPCOrder;
+
+        private Effort(SubframeType type, int maxLPCOrder) {
+            this.type = type;
+            this.maxLPCOrder = maxLPCOrder;
+        }
+
+        public EncodingConfiguration getConfiguration() {
+            EncodingConfiguration ec = new EncodingConfiguration();
+            ec.setSubframeType(type);
+            if(maxLPCOrder > 0) ec.setMaxLPCOrder(maxLPCOrder);
+            return ec;
+        }
+    }
+
+    private final int threads;
+    private final int maxInFlight;
+    private final int blockSize;
+    private final long blockNanos;
+
+    private float headroom = 0;
+    private Effort ceiling = Effort.EXHAUSTIVE;
+    private volatile Effort effort = Effort.EXHAUSTIVE;
+    private final AtomicLong[] framesPerEffort =
+        new AtomicLong[Effort.values().length];
+    private final AtomicLong windowNanos = new AtomicLong(0);
+    private final AtomicLong windowFrames = new AtomicLong(0);
+
+    private final long[] submitted = new long[TIMESTAMPS];
+    private volatile long framesSubmitted = 0;
+    private final AtomicLong framesFinished = new AtomicLong(0);
+
+    // frame boundaries are marked on the output stage, if any
+    private final Object markLock = new Object();
+    private OutputStage stage = null;
+    private int channels = 0;
+
+    private volatile long lastFrameNanos = 0;
+    private volatile long maxFrameNanos = 0;
+    private final AtomicLong totalFrameNanos = new AtomicLong(0);
+
+    public FLACFrameEncoder(int threads, int blockSize, int sampleRate) {
+        this.threads = threads;
+        this.maxInFlight = Math.max(2, 2*threads);
+        this.blockSize = blockSize;
+        this.blockNanos = 1000000000L * blockSize / sampleRate;
+
+        for(int i = 0; i < framesPerEffort.length; ++i) {
+            framesPerEffort[i] = new AtomicLong(0);
+        }
+
+        if(maxInFlight + 2 > TIMESTAMPS) {
+            throw new IllegalArgumentException("too many threads: " + threads);
+        }
+    }
+
+    public void setStage(OutputStage stage, int channels) {
+        this.stage = stage;
+        this.channels = channels;
+    }
+
+    public int getThreads() { return threads; }
+    public int getBlockSize() { return blockSize; }
+
+    public int getFramesInFlight() {
+        return (int)(framesSubmitted - framesFinished.get());
+    }
+
+    public long getFramesEncoded() { return framesFinished.get(); }
+    public long getLastFrameNanos() { return lastFrameNanos; }
+    public long getMaxFrameNanos() { return maxFrameNanos; }
+
+    public long getMeanFrameNanos() {
+        long n = framesFinished.get();
+        return n == 0 ? 0 : totalFrameNanos.get() / n;
+    }
+
+    public Effort getEffort() { return effort; }
+
+    public long getFrames(Effort e) {
+        return framesPerEffort[e.ordinal()].get();
+    }
+
+    // including how many frames were encoded at each effort, as
+    // <prefix>_frames_<effort>
+    public void collectStats(SessionStats stats, String prefix) {
+        stats.put(prefix + "_threads", threads);
+        stats.put(prefix + "_frames", getFramesEncoded());
+        stats.put(prefix + "_frame_mean_ms", getMeanFrameNanos() / 1e6);
+        stats.put(prefix + "_frame_max_ms", getMaxFrameNanos() / 1e6);
+        for(Effort e : Effort.values()) {
+            stats.put(prefix + "_frames_" + e.name().toLowerCase(),
+                    getFrames(e));
+        }
+    }
+
+    // headroom is the fraction of real-time left unused by the encoder,
+    // a headroom of zero disables adapting the effort
+    public void setAdaptive(Effort ceiling, float headroom) {
+        this.ceiling = ceiling;
+        this.headroom = headroom;
+        setEffort(ceiling);
+    }
+
+    private boolean setEffort(Effort e) {
+        if(!setEncodingConfiguration(e.getConfiguration())) return false;
+        effort = e;
+        return true;
+    }
+
+    public void open() throws IOException {
+        if(threads > 0 && !setThreadCount(threads)) {
+            throw new IllegalStateException(
+                    "unable to set FLAC encoder thread count: " + threads);
+        }
+        openFLACStream();
+    }
+
+    public int encode(int samples, boolean end) throws IOException {
+        if(threads > 0 && end) {
+            // the library hands the last, partial block to the frame threads
+            // without numbering it: leave them the full blocks and encode
+            // the rest here once those have been written
+            int r = encode(Math.min(samples,
+                        fullBlockSamplesAvailableToEncode()), false);
+            while(getFramesInFlight() > 0) {
+                LockSupport.parkNanos(this, 1000000);
+            }
+            return r + encodeHere(samples - r, true);
+        }
+
+        if(threads > 0) {
+            int frames = samples / blockSize;
+            long t = System.nanoTime();
+            long f = framesSubmitted;
+            for(int i = 0; i < frames; ++i) {
+                submitted[(int)((f + i) % TIMESTAMPS)] = t;
+            }
+            framesSubmitted = f + frames;
+            int r = t_encodeSamples(samples, false, maxInFlight);
+            adapt();
+            return r;
+        }
+
+        return encodeHere(samples, end);
+    }
+
+    // encodes on the calling thread
+    private int encodeHere(int samples, boolean end) throws IOException {
+        int frames = end ? (samples + blockSize - 1) / blockSize
+            : samples / blockSize;
+
+        long t = System.nanoTime();
+        framesSubmitted += frames;
+        int r = encodeSamples(samples, end);
+        if(frames > 0) {
+            long d = (System.nanoTime() - t) / frames;
+            for(int i = 0; i < frames; ++i) {
+                framesFinished.incrementAndGet();
+                record(d);
+            }
+            mark(framesFinished.get());
+        }
+        if(!end) adapt();
+        return r;
+    }
+
+    private void adapt() {
+        if(headroom <= 0) return;
+
+        long n = windowFrames.get();
+        if(n < SETTLE_FRAMES) return;
+
+        double load = (double)windowNanos.get()
+            / (n * Math.max(1, threads) * blockNanos);
+        double target = 1 - headroom;
+
+        Effort[] es = Effort.values();
+        int e = effort.ordinal();
+        if(load > target && e + 1 < es.length) {
+            e += 1;
+        } else if(load < target/2 && e > ceiling.ordinal()) {
+            e -= 1;
+        } else {
+            if(n >= 4*SETTLE_FRAMES) resetWindow();
+            return;
+        }
+
+        // the frame threads encode with the configuration registered on
+        // their frames, so wait for a frame boundary before changing it
+        while(getFramesInFlight() > 0) {
+            LockSupport.parkNanos(this, 1000000);
+        }
+
+        Effort from = effort;
+        if(setEffort(es[e])) {
+            Log.i(TAG, String.format("flac effort: %s -> %s (load=%.2f)",
+                        from, es[e], load));
+        }
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowNanos.set(0);
+        windowFrames.set(0);
+    }
+
+    @Override
+    protected void blockFinished(BlockEncodeRequest r) {
+        // the frame is written by the time super returns: hold on to the
+        // lock until it's been marked so the next one can't sneak in
+        synchronized(markLock) {
+            super.blockFinished(r);
+
+            long f = framesFinished.getAndIncrement();
+            record(System.nanoTime() - submitted[(int)(f % TIMESTAMPS)]);
+            mark(f + 1);
+        }
+    }
+
+    private void mark(long frames) {
+        if(stage != null) stage.mark(frames * blockSize * channels);
+    }
+
+    private void record(long d) {
+        lastFrameNanos = d;
+        if(d > maxFrameNanos) maxFrameNanos = d;
+        totalFrameNanos.addAndGet(d);
+
+        framesPerEffort[effort.ordinal()].incrementAndGet();
+        windowNanos.addAndGet(d);
+        windowFrames.incrementAndGet();
+    }
+}
@@ -0,0 +1,47 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.sourceforge.javaflacencoder.FLACOutputStream;
+
+// Lets the FLAC encoder write through an OutputStage: appends are queued,
+// writes after seeking back (i.e. the STREAMINFO rewrite when closing) are
+// done in place once the queue has drained
+class FLACStageOutputStream implements FLACOutputStream {
+    private final OutputStage stage;
+    private long pos = 0;
+    private final byte[] one = new byte[1];
+
+    public FLACStageOutputStream(OutputStage stage) {
+        this.stage = stage;
+    }
+
+    public long seek(long pos) {
+        this.pos = pos;
+        return pos;
+    }
+
+    public int write(byte[] bs, int offset, int length) throws IOException {
+        if(pos == stage.size()) {
+            stage.write(bs, offset, length);
+        } else {
+            stage.writeAt(ByteBuffer.wrap(bs, offset, length), pos);
+        }
+        pos += length;
+        return length;
+    }
+
+    public void write(byte b) throws IOException {
+        one[0] = b;
+        write(one, 0, 1);
+    }
+
+    public long size() { return stage.size(); }
+    public boolean canSeek() { return true; }
+    public long getPos() { return pos; }
+
+    public void close() throws IOException {
+        stage.close();
+    }
+}
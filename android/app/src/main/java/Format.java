@@ -4,7 +4,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 public enum Format implements Parcelable {
-    FLAC(1), MP3(2);
+    FLAC(1), MP3(2), WAV(3);
 
     private int v;
 
@@ -17,6 +17,8 @@ public enum Format implements Parcelable {
             return FLAC;
         } else if(v == MP3.v) {
             return MP3;
+        } else if(v == WAV.v) {
+            return WAV;
         } else {
             throw new RuntimeException("unsupported format: " + v);
         }
@@ -27,6 +29,8 @@ public enum Format implements Parcelable {
             return FLAC;
         } else if(s.equals("MP3")) {
             return MP3;
+        } else if(s.equals("WAV")) {
+            return WAV;
         } else {
             throw new RuntimeException("unsupported format: " + s);
         }
@@ -37,6 +41,8 @@ public enum Format implements Parcelable {
             return "audio/x-flac";
         } else if(v == MP3.v) {
             return "audio/mpeg";
+        } else if(v == WAV.v) {
+            return "audio/wav";
         } else {
             throw new RuntimeException("unsupported format: " + v);
         }
@@ -47,6 +53,8 @@ public enum Format implements Parcelable {
             return Format.FLAC;
         } else if(f.toLowerCase().endsWith(".mp3")) {
             return Format.MP3;
+        } else if(f.toLowerCase().endsWith(".wav")) {
+            return Format.WAV;
         } else {
             throw new IllegalArgumentException(
                     "unable to guess format of: " + f);
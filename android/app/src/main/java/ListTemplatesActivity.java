@@ -12,6 +12,7 @@ import java.util.Collection;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -92,7 +93,8 @@ public class ListTemplatesActivity extends AppCompatActivity {
             binding.artistValue.setText(t.getArtist());
             binding.composerValue.setText(t.getComposer());
             binding.prefixValue.setText(t.getPrefix().toString());
-            binding.formatValue.setText(t.getFormat().toString());
+            binding.formatValue.setText(
+                    TextUtils.join(" + ", t.getFormats()));
             binding.autoUploadValue.setChecked(t.getAutoUpload());
         }
 
@@ -0,0 +1,113 @@
+package io.rootmos.audiojournal;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.flac.FlacTag;
+import org.jaudiotagger.tag.id3.AbstractID3v2Frame;
+import org.jaudiotagger.tag.id3.AbstractID3v2Tag;
+import org.jaudiotagger.tag.id3.framebody.FrameBodyTXXX;
+
+// What a LoudnessMeter measured: loudness in LUFS/LU, peaks as linear
+// amplitudes relative to full scale. The loudness is NaN when nothing was
+// loud enough to pass the gates (e.g. silence).
+class Loudness {
+    // ReplayGain 2.0 reference level
+    public static final double REFERENCE = -18;
+
+    private final double integrated;
+    private final double range;
+    private final double peak;
+    private final double truePeak;
+    private final double[] rms;
+
+    public Loudness(double integrated, double range, double peak,
+            double truePeak, double[] rms) {
+        this.integrated = integrated;
+        this.range = range;
+        this.peak = peak;
+        this.truePeak = truePeak;
+        this.rms = rms;
+    }
+
+    public double getIntegrated() { return integrated; }
+    public double getRange() { return range; }
+    public double getPeak() { return peak; }
+    public double getTruePeak() { return truePeak; }
+    public double[] getRMS() { return rms; }
+
+    public boolean hasGain() { return !Double.isNaN(integrated); }
+
+    // gain in dB to bring playback to the reference level
+    public double getGain() { return REFERENCE - integrated; }
+
+    public static double decibels(double amplitude) {
+        return 20 * Math.log10(Math.max(amplitude, 1e-6));
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject j = new JSONObject();
+        if(!Double.isNaN(integrated)) j.put("integrated", integrated);
+        if(!Double.isNaN(range)) j.put("range", range);
+        j.put("peak", peak);
+        j.put("true_peak", truePeak);
+        JSONArray rs = new JSONArray();
+        for(double r : rms) rs.put(decibels(r));
+        j.put("rms", rs);
+        if(hasGain()) {
+            j.put("replaygain_track_gain", getGain());
+            j.put("replaygain_track_peak", truePeak);
+        }
+        return j;
+    }
+
+    public static Loudness fromJSON(JSONObject j) throws JSONException {
+        JSONArray rs = j.getJSONArray("rms");
+        double[] rms = new double[rs.length()];
+        for(int i = 0; i < rms.length; ++i) {
+            rms[i] = Math.pow(10, rs.getDouble(i) / 20);
+        }
+        return new Loudness(
+                j.optDouble("integrated", Double.NaN),
+                j.optDouble("range", Double.NaN),
+                j.getDouble("peak"),
+                j.getDouble("true_peak"),
+                rms);
+    }
+
+    // values of the REPLAYGAIN_TRACK_GAIN and REPLAYGAIN_TRACK_PEAK tags
+    public String getGainTag() {
+        return String.format(Locale.ROOT, "%.2f dB", getGain());
+    }
+
+    public String getPeakTag() {
+        return String.format(Locale.ROOT, "%.6f", truePeak);
+    }
+
+    // ReplayGain tags as understood by most players, when there's a gain
+    public void tag(Tag t) throws Exception {
+        if(!hasGain()) return;
+
+        String gain = getGainTag();
+        String peak = getPeakTag();
+
+        if(t instanceof FlacTag) {
+            ((FlacTag)t).setField("REPLAYGAIN_TRACK_GAIN", gain);
+            ((FlacTag)t).setField("REPLAYGAIN_TRACK_PEAK", peak);
+        } else if(t instanceof AbstractID3v2Tag) {
+            AbstractID3v2Tag id3 = (AbstractID3v2Tag)t;
+            AbstractID3v2Frame g = id3.createFrame("TXXX");
+            g.setBody(new FrameBodyTXXX((byte)0,
+                        "REPLAYGAIN_TRACK_GAIN", gain));
+            AbstractID3v2Frame p = id3.createFrame("TXXX");
+            p.setBody(new FrameBodyTXXX((byte)0,
+                        "REPLAYGAIN_TRACK_PEAK", peak));
+            id3.setFrame("TXXX", Arrays.asList(g, p));
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package io.rootmos.audiojournal;
+
+// Incremental EBU R128 / ITU-R BS.1770 analysis of interleaved 16-bit PCM,
+// fed chunk by chunk while recording and using a fixed amount of memory
+// however long the recording.
+//
+// The K-weighted signal's energy is summed over 100ms sub-blocks. The last
+// four of those make a 400ms momentary block, which goes into a histogram
+// (0.1 LU bins) for the gated integrated loudness. The last thirty make a
+// 3s short-term block, which goes into another histogram for the loudness
+// range. True-peak is measured by 4x oversampling with the polyphase FIR
+// from BS.1770 Annex 2.
+class LoudnessMeter {
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double INTEGRATED_GATE = -10;
+    private static final double RANGE_GATE = -20;
+    private static final double HISTOGRAM_MAX = 5;
+    private static final int HISTOGRAM_BINS =
+        (int)((HISTOGRAM_MAX - ABSOLUTE_GATE) * 10);
+
+    private static final int MOMENTARY_SUBBLOCKS = 4;
+    private static final int SHORT_TERM_SUBBLOCKS = 30;
+
+    private static final double[][] TRUE_PEAK_PHASES = {
+        { 0.0017089843750, 0.0109863281250, -0.0196533203125,
+            0.0332031250000, -0.0594482421875, 0.1373291015625,
+            0.9721679687500, -0.1022949218750, 0.0476074218750,
+            -0.0266113281250, 0.0148925781250, -0.0083007812500 },
+        { -0.0291748046875, 0.0292968750000, -0.0517578125000,
+            0.0891113281250, -0.1665039062500, 0.4650878906250,
+            0.7797851562500, -0.2003173828125, 0.1015625000000,
+            -0.0582275390625, 0.0330810546875, -0.0189208984375 },
+        { -0.0189208984375, 0.0330810546875, -0.0582275390625,
+            0.1015625000000, -0.2003173828125, 0.7797851562500,
+            0.4650878906250, -0.1665039062500, 0.0891113281250,
+            -0.0517578125000, 0.0292968750000, -0.0291748046875 },
+        { -0.0083007812500, 0.0148925781250, -0.0266113281250,
+            0.0476074218750, -0.1022949218750, 0.9721679687500,
+            0.1373291015625, -0.0594482421875, 0.0332031250000,
+            -0.0196533203125, 0.0109863281250, 0.0017089843750 },
+    };
+    private static final int TRUE_PEAK_TAPS = TRUE_PEAK_PHASES[0].length;
+
+    private final int channels;
+    private final int subBlockFrames;
+
+    // K-weighting: a high shelf followed by a high pass, per channel
+    private final double[] sb = new double[3], sa = new double[3];
+    private final double[] hb = new double[3], ha = new double[3];
+    private final double[][] sz, hz;
+
+    // per channel sums over the whole recording
+    private final double[] squares;
+    private final double[] peaks;
+    private final double[] truePeaks;
+    private final double[][] history;
+    private int historyPos = 0;
+    private long frames = 0;
+
+    private double subBlock = 0;
+    private int subBlockFill = 0;
+    private final double[] subBlocks = new double[SHORT_TERM_SUBBLOCKS];
+    private long subBlockCount = 0;
+
+    private final long[] momentaryCounts = new long[HISTOGRAM_BINS];
+    private final double[] momentaryEnergies = new double[HISTOGRAM_BINS];
+    private final long[] shortTermCounts = new long[HISTOGRAM_BINS];
+    private final double[] shortTermEnergies = new double[HISTOGRAM_BINS];
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.subBlockFrames = sampleRate / 10;
+
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        sb[0] = (vh + vb * k / q + k * k) / a0;
+        sb[1] = 2 * (k * k - vh) / a0;
+        sb[2] = (vh - vb * k / q + k * k) / a0;
+        sa[1] = 2 * (k * k - 1) / a0;
+        sa[2] = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        hb[0] = 1; hb[1] = -2; hb[2] = 1;
+        ha[1] = 2 * (k * k - 1) / a0;
+        ha[2] = (1 - k / q + k * k) / a0;
+
+        sz = new double[channels][2];
+        hz = new double[channels][2];
+        squares = new double[channels];
+        peaks = new double[channels];
+        truePeaks = new double[channels];
+        history = new double[channels][TRUE_PEAK_TAPS];
+    }
+
+    public void update(short[] samples, int length) {
+        for(int i = 0; i + channels <= length; i += channels) {
+            double e = 0;
+            for(int c = 0; c < channels; ++c) {
+                double x = samples[i + c] / 32768.0;
+
+                squares[c] += x * x;
+                double a = Math.abs(x);
+                if(a > peaks[c]) peaks[c] = a;
+
+                history[c][historyPos] = x;
+                double t = truePeak(history[c]);
+                if(t > truePeaks[c]) truePeaks[c] = t;
+
+                // transposed direct form II
+                double[] z = sz[c];
+                double y = sb[0] * x + z[0];
+                z[0] = sb[1] * x - sa[1] * y + z[1];
+                z[1] = sb[2] * x - sa[2] * y;
+
+                z = hz[c];
+                double w = hb[0] * y + z[0];
+                z[0] = hb[1] * y - ha[1] * w + z[1];
+                z[1] = hb[2] * y - ha[2] * w;
+
+                e += w * w;
+            }
+            historyPos = (historyPos + 1) % TRUE_PEAK_TAPS;
+            frames += 1;
+
+            subBlock += e;
+            if(++subBlockFill == subBlockFrames) {
+                subBlockFinished();
+            }
+        }
+    }
+
+    // largest magnitude of the four interpolated samples between the two
+    // samples in the middle of the history
+    private double truePeak(double[] h) {
+        double m = 0;
+        for(double[] p : TRUE_PEAK_PHASES) {
+            double y = 0;
+            int j = historyPos;
+            for(int k = 0; k < TRUE_PEAK_TAPS; ++k) {
+                y += p[k] * h[j];
+                j = j == 0 ? TRUE_PEAK_TAPS - 1 : j - 1;
+            }
+            m = Math.max(m, Math.abs(y));
+        }
+        return m;
+    }
+
+    private void subBlockFinished() {
+        subBlocks[(int)(subBlockCount % SHORT_TERM_SUBBLOCKS)] =
+            subBlock / subBlockFrames;
+        subBlockCount += 1;
+        subBlock = 0;
+        subBlockFill = 0;
+
+        if(subBlockCount >= MOMENTARY_SUBBLOCKS) {
+            add(momentaryCounts, momentaryEnergies,
+                    mean(MOMENTARY_SUBBLOCKS));
+        }
+        if(subBlockCount >= SHORT_TERM_SUBBLOCKS) {
+            add(shortTermCounts, shortTermEnergies,
+                    mean(SHORT_TERM_SUBBLOCKS));
+        }
+    }
+
+    private double mean(int n) {
+        double s = 0;
+        for(int i = 1; i <= n; ++i) {
+            s += subBlocks[(int)((subBlockCount - i) % SHORT_TERM_SUBBLOCKS)];
+        }
+        return s / n;
+    }
+
+    private static double loudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static int bin(double l) {
+        return (int)Math.min(HISTOGRAM_BINS - 1,
+                Math.floor((l - ABSOLUTE_GATE) * 10));
+    }
+
+    private static double binLoudness(int b) {
+        return ABSOLUTE_GATE + (b + 0.5) / 10;
+    }
+
+    private static void add(long[] counts, double[] energies, double e) {
+        if(e <= 0) return;
+        double l = loudness(e);
+        if(l < ABSOLUTE_GATE) return;
+        int b = bin(l);
+        counts[b] += 1;
+        energies[b] += e;
+    }
+
+    // the relative gate's bin: the mean energy of the blocks above the
+    // absolute gate, lowered by the given number of LU
+    private static int gate(long[] counts, double[] energies, double lu) {
+        long n = 0;
+        double s = 0;
+        for(int b = 0; b < HISTOGRAM_BINS; ++b) {
+            n += counts[b];
+            s += energies[b];
+        }
+        if(n == 0) return -1;
+        return Math.max(0, bin(loudness(s / n) + lu));
+    }
+
+    private double integrated() {
+        int g = gate(momentaryCounts, momentaryEnergies, INTEGRATED_GATE);
+        if(g < 0) return Double.NaN;
+
+        long n = 0;
+        double s = 0;
+        for(int b = g; b < HISTOGRAM_BINS; ++b) {
+            n += momentaryCounts[b];
+            s += momentaryEnergies[b];
+        }
+        return n == 0 ? Double.NaN : loudness(s / n);
+    }
+
+    private double range() {
+        int g = gate(shortTermCounts, shortTermEnergies, RANGE_GATE);
+        if(g < 0) return Double.NaN;
+
+        long n = 0;
+        for(int b = g; b < HISTOGRAM_BINS; ++b) n += shortTermCounts[b];
+        if(n == 0) return Double.NaN;
+
+        return percentile(g, n, 0.95) - percentile(g, n, 0.10);
+    }
+
+    private double percentile(int from, long n, double p) {
+        long k = (long)Math.floor((n - 1) * p);
+        long c = 0;
+        for(int b = from; b < HISTOGRAM_BINS; ++b) {
+            c += shortTermCounts[b];
+            if(c > k) return binLoudness(b);
+        }
+        return binLoudness(HISTOGRAM_BINS - 1);
+    }
+
+    public long getFrames() { return frames; }
+
+    public Loudness getLoudness() {
+        double[] rms = new double[channels];
+        double peak = 0, truePeak = 0;
+        for(int c = 0; c < channels; ++c) {
+            rms[c] = frames == 0 ? 0 : Math.sqrt(squares[c] / frames);
+            peak = Math.max(peak, peaks[c]);
+            truePeak = Math.max(truePeak, truePeaks[c]);
+        }
+        truePeak = Math.max(truePeak, peak);
+        return new Loudness(integrated(), range(), peak, truePeak, rms);
+    }
+}
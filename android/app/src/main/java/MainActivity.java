@@ -4,10 +4,12 @@ import static io.rootmos.audiojournal.Common.TAG;
 import io.rootmos.audiojournal.databinding.ActivityMainBinding;
 
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -15,7 +17,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
 import android.content.Context;
@@ -50,11 +60,10 @@ import net.sourceforge.javaflacencoder.FLACFileOutputStream;
 import net.sourceforge.javaflacencoder.StreamConfiguration;
 import net.sourceforge.javaflacencoder.EncodingConfiguration;
 
-import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import org.apache.commons.codec.binary.Hex;
 
 public class MainActivity extends AppCompatActivity implements
     RecordingService.OnStateChangeListener,
@@ -89,8 +98,19 @@ public class MainActivity extends AppCompatActivity implements
 
     private AmazonS3Client s3 = null;
 
+    private static final Metrics.Histogram SYNC =
+        Metrics.histogram("sync");
+    private static final Metrics.Histogram SYNC_FIRST =
+        Metrics.histogram("sync_first_item");
+
     private Settings settings = new Settings(this);
 
+    // waveforms are loaded as the sounds are shown, one at a time, on a
+    // thread shared by every instance of the activity
+    private static final Executor peaksExecutor =
+        Executors.newSingleThreadExecutor();
+    private static final int POSITION_MILLIS = 100;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -109,8 +129,7 @@ public class MainActivity extends AppCompatActivity implements
 
         binding.refreshLayout.setOnRefreshListener(this);
 
-        s3 = new AmazonS3Client(AWSAuth.getAuth(),
-                Region.getRegion(settings.getBucketRegion()));
+        s3 = UploadService.newClient(settings);
 
         setSupportActionBar(binding.appbar.getRoot());
     }
@@ -153,6 +172,7 @@ public class MainActivity extends AppCompatActivity implements
         Log.i(TAG, "resuming main activity");
 
         RecordingService.bind(this, sc);
+        TranscodeService.resume(this);
 
         new ListSoundsTask(this).execute();
     }
@@ -243,45 +263,94 @@ public class MainActivity extends AppCompatActivity implements
 
         @Override
         protected Boolean doInBackground(Void... params) {
-            ArrayList<Sound> ss = new ArrayList<>();
+            final long t = System.nanoTime();
+            final AtomicLong first = new AtomicLong(0);
+
+            // the local sounds and those in the bucket are found at the same
+            // time and shown as they come in, whichever's first
+            final Catalog.Listener l = new Catalog.Listener() {
+                public void found(List<Sound> b) {
+                    first.compareAndSet(0, System.nanoTime() - t);
+                    publishProgress(b.toArray(new Sound[0]));
+                }
+            };
+
+            FutureTask<List<Sound>> remote = new FutureTask<>(
+                    new Callable<List<Sound>>() {
+                public List<Sound> call() {
+                    BucketSync.Listener bl = new BucketSync.Listener() {
+                        public void found(List<Sound> b) { l.found(b); }
+                    };
+
+                    long now = System.currentTimeMillis();
+                    if(now - settings.getLastFullSync()
+                            < settings.getFullSyncMillis()) {
+                        try {
+                            List<Sound> ss = new BucketManifest(s3,
+                                    settings.getBucketName(),
+                                    settings.getUpstreamCacheDir()).sync(bl);
+                            if(ss != null) return ss;
+                        } catch(Exception e) {
+                            Log.w(TAG, "unable to use the manifests", e);
+                        }
+                    }
 
-            for(Sound s : Sound.scanDir(settings.getBaseDir())) {
-                ss.add(s);
-                publishProgress(s);
-            }
+                    BucketManifest bm = new BucketManifest(s3,
+                            settings.getBucketName(),
+                            settings.getUpstreamCacheDir());
+                    Set<String> before = null;
+                    try {
+                        before = bm.snapshot();
+                    } catch(Exception e) {
+                        Log.w(TAG, "unable to read the manifests", e);
+                    }
 
-            List<S3ObjectSummary> ol =
-                s3.listObjects(settings.getBucketName()).getObjectSummaries();
-            for(S3ObjectSummary os : ol) {
-                if(!os.getKey().endsWith(".json")) continue;
-
-                Path f = settings.getUpstreamCacheDir().resolve(os.getETag());
-                if(!Files.exists(f)) {
-                    Log.d(TAG, String.format(
-                                "fetching metadata: s3://%s/%s etag=%s",
-                                os.getBucketName(), os.getKey(), os.getETag()));
-                    s3.getObject(new GetObjectRequest(
-                                os.getBucketName(), os.getKey()), f.toFile());
-                } else {
-                    Log.d(TAG, String.format(
-                                "using cached metadata: s3://%s/%s etag=%s",
-                                os.getBucketName(), os.getKey(), os.getETag()));
+                    BucketSync bs = new BucketSync(s3,
+                            settings.getBucketName(),
+                            settings.getUpstreamCacheDir());
+                    List<Sound> ss = bs.sync(bl);
+                    settings.setLastFullSync(now);
+
+                    // only a complete listing can tell what the manifests
+                    // are missing or shouldn't have
+                    if(before != null && bs.isComplete()) {
+                        try {
+                            bm.repair(ss, before);
+                        } catch(Exception e) {
+                            Log.w(TAG, "unable to repair the manifests", e);
+                        }
+                    }
+                    return ss;
                 }
+            });
+            new Thread(remote, "bucket-sync").start();
+
+            ArrayList<Sound> ss = new ArrayList<>();
+            try {
+                ss.addAll(new Catalog(settings.getCatalogFile(),
+                            settings.getBaseDir()).scan(l));
+            } catch(IOException e) {
+                throw new RuntimeException("unable to scan local sounds", e);
+            }
 
+            while(true) {
                 try {
-                    FileInputStream is = new FileInputStream(f.toFile());
-                    Sound s = Sound.fromInputStream(is);
-                    is.close();
-                    ss.add(s);
-                    publishProgress(s);
-                } catch(FileNotFoundException e) {
-                    throw new RuntimeException("unable to open file", e);
-                } catch(IOException e) {
-                    throw new RuntimeException(
-                            "exception while handling metadata file", e);
+                    ss.addAll(remote.get());
+                    break;
+                } catch(InterruptedException e) {
+                    continue;
+                } catch(ExecutionException e) {
+                    throw new RuntimeException("unable to sync bucket",
+                            e.getCause());
                 }
-
             }
+
+            long d = System.nanoTime() - t;
+            SYNC.record(d);
+            if(first.get() > 0) SYNC_FIRST.record(first.get());
+            Log.i(TAG, String.format(
+                        "sync: sounds=%d first=%.2fms total=%.2fms",
+                        ss.size(), first.get() / 1e6, d / 1e6));
             return true;
         }
 
@@ -304,29 +373,109 @@ public class MainActivity extends AppCompatActivity implements
         private Sound s = null;
         private Context ctx = null;
 
+        // the parts of a segmented recording, ordered, s being the first
+        private ArrayList<Sound> parts = new ArrayList<>();
+        private int current = 0;
+        private TextView duration = null;
+
         private ImageButton play = null;
         private ImageButton resume = null;
         private ImageButton pause = null;
         private ImageButton stop = null;
         private ImageButton upload = null;
         private ImageButton share = null;
+        private WaveformView waveform = null;
 
         private MediaPlayer player = null;
         private FileInputStream is = null;
+        private boolean prepared = false;
+
+        // the peaks shown, of the part being played or else the first
+        private Sound peaksOf = null;
+
+        private Runnable position = new Runnable() {
+            public void run() {
+                if(player == null || !prepared) return;
+                waveform.setPosition((float)player.getCurrentPosition()
+                        / Math.max(1, player.getDuration()));
+                waveform.postDelayed(this, POSITION_MILLIS);
+            }
+        };
 
         public SoundItem(Context ctx, Sound s) {
             this.ctx = ctx;
             this.s = s;
+            parts.add(s);
         }
 
         public Sound getSound() { return s; }
 
+        public boolean contains(Sound o) {
+            for(Sound p : parts) {
+                if(Arrays.equals(p.getSHA1(), o.getSHA1())) return true;
+            }
+            return false;
+        }
+
+        // the parts of a session rendered in several formats make up an
+        // item per format
+        public boolean isSessionOf(Sound o) {
+            return s.getSession() != null
+                && s.getSession().equals(o.getSession())
+                && Objects.equals(s.getMimeType(), o.getMimeType());
+        }
+
+        public void addPart(Sound o) {
+            for(Sound p : parts) {
+                if(p.getPart() == o.getPart()) {
+                    Log.w(TAG, String.format(
+                                "ignoring duplicate part %d of session %s: %s",
+                                o.getPart(), o.getSession(), o.getFilename()));
+                    return;
+                }
+            }
+
+            parts.add(o);
+            Collections.sort(parts, new Comparator<Sound>() {
+                public int compare(Sound a, Sound b) {
+                    return Integer.compare(a.getPart(), b.getPart());
+                }
+            });
+            s = parts.get(0);
+
+            if(v != null) {
+                duration.setText(Utils.formatDuration(getDuration()));
+                updateUpload();
+                if(player == null) loadPeaks(s);
+            }
+        }
+
+        private float getDuration() {
+            float d = 0;
+            for(Sound p : parts) d += p.getDuration();
+            return d;
+        }
+
+        private Sound playing() { return parts.get(current); }
+
+        private void updateUpload() {
+            boolean u = false;
+            for(Sound p : parts) {
+                u |= p.getURI() == null && p.getLocal() != null;
+            }
+            upload.setVisibility(u ? View.VISIBLE : View.GONE);
+        }
+
         @Override
         public void onClick(View w) {
             if(w == play) {
                 play_sound(this);
             } else if(w == upload) {
-                UploadService.upload(ctx, s);
+                for(Sound p : parts) {
+                    if(p.getURI() == null && p.getLocal() != null) {
+                        UploadService.upload(ctx, p);
+                    }
+                }
                 upload.setVisibility(View.GONE);
             } else if(w == share) {
                 startActivity(s.getShareIntent(ctx));
@@ -373,8 +522,8 @@ public class MainActivity extends AppCompatActivity implements
             ((TextView)v.findViewById(R.id.title)).setText(s.getTitle());
             ((TextView)v.findViewById(R.id.artist)).setText(s.getArtist());
             ((TextView)v.findViewById(R.id.composer)).setText(s.getComposer());
-            ((TextView)v.findViewById(R.id.duration)).setText(
-                Utils.formatDuration(s.getDuration()));
+            duration = (TextView)v.findViewById(R.id.duration);
+            duration.setText(Utils.formatDuration(getDuration()));
 
             if(s.getDateTime() == null) {
                 ((TextView)v.findViewById(R.id.date)).setText(
@@ -387,18 +536,80 @@ public class MainActivity extends AppCompatActivity implements
 
             upload = (ImageButton)v.findViewById(R.id.upload);
             upload.setOnClickListener(this);
-            if(s.getURI() == null && s.getLocal() != null) {
-                upload.setVisibility(View.VISIBLE);
-            }
+            updateUpload();
 
             share = (ImageButton)v.findViewById(R.id.share);
             share.setOnClickListener(this);
 
+            waveform = (WaveformView)v.findViewById(R.id.waveform);
+            waveform.setOnSeekListener(new WaveformView.OnSeekListener() {
+                public void onSeek(float f) {
+                    if(active_sound != SoundItem.this || !prepared) return;
+                    player.seekTo((int)(f * player.getDuration()));
+                }
+            });
+            loadPeaks(s);
+
             return v;
         }
 
+        private void loadPeaks(final Sound p) {
+            if(peaksOf == p) return;
+            peaksOf = p;
+
+            final int width = getResources().getDisplayMetrics().widthPixels;
+            new AsyncTask<Void, Void, Peaks>() {
+                @Override
+                protected Peaks doInBackground(Void... params) {
+                    try {
+                        Path f = peaksFile(p);
+                        return f == null ? null : Peaks.read(f, width);
+                    } catch(IOException e) {
+                        Log.w(TAG, "unable to load peaks: " + p.getTitle(), e);
+                        return null;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Peaks ps) {
+                    if(peaksOf != p) return;
+                    waveform.setPeaks(ps);
+                    waveform.setVisibility(ps != null ? View.VISIBLE : View.GONE);
+                }
+            }.executeOnExecutor(peaksExecutor);
+        }
+
+        // the local peaks, or the uploaded ones fetched into the cache
+        private Path peaksFile(Sound p) throws IOException {
+            Path f = p.getPeaks();
+            if(f != null && Files.exists(f)) return f;
+            if(p.getPeaksURI() == null) return null;
+
+            f = settings.getUpstreamCacheDir().resolve(
+                    Hex.encodeHexString(p.getSHA1()) + ".peaks");
+            if(!Files.exists(f)) {
+                Log.d(TAG, "fetching peaks: " + p.getPeaksURI());
+                Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+                try(InputStream i = new URL(p.getPeaksURI().toString())
+                        .openStream()) {
+                    Files.copy(i, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            return f;
+        }
+
         public void play() {
+            current = 0;
+            start();
+        }
+
+        private void start() {
+            Sound s = playing();
+            loadPeaks(s);
             player = new MediaPlayer();
+            prepared = false;
 
             try {
                 if(s.getLocal() != null) {
@@ -430,12 +641,17 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         public void stop() {
+            Sound s = playing();
             Log.i(TAG, String.format("stopping: local=%s uri=%s",
                     s.getLocal(), s.getURI()));
 
             if(player.isPlaying()) player.stop();
             player.release();
             player = null;
+            prepared = false;
+            waveform.removeCallbacks(position);
+            waveform.setPosition(-1);
+            loadPeaks(parts.get(0));
 
             if(is != null) {
                 try {
@@ -454,11 +670,32 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         public void onCompletion(MediaPlayer m) {
-            stop_playing();
+            if(current + 1 >= parts.size()) {
+                stop_playing();
+                return;
+            }
+
+            // continue with the next part
+            player.release();
+            player = null;
+            prepared = false;
+            waveform.removeCallbacks(position);
+            if(is != null) {
+                try {
+                    is.close();
+                    is = null;
+                } catch(IOException e) {
+                    throw new RuntimeException("unable to close file", e);
+                }
+            }
+            current += 1;
+            start();
         }
 
         public void onPrepared(MediaPlayer m) {
             m.start();
+            prepared = true;
+            waveform.post(position);
 
             play.setVisibility(View.GONE);
             pause.setVisibility(View.VISIBLE);
@@ -466,10 +703,11 @@ public class MainActivity extends AppCompatActivity implements
             stop.setVisibility(View.VISIBLE);
 
             Log.i(TAG, String.format("playing: local=%s uri=%s",
-                        s.getLocal(), s.getURI()));
+                        playing().getLocal(), playing().getURI()));
         }
 
         public boolean onError(MediaPlayer m, int what, int extra) {
+            Sound s = playing();
             Log.e(TAG, String.format("media error (%d): local=%s uri=%s",
                         what, s.getLocal(), s.getURI()));
             Toast.makeText(ctx, "Can't play: " + s.getTitle(),
@@ -478,6 +716,7 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         public boolean onInfo(MediaPlayer m, int what, int extra) {
+            Sound s = playing();
             Log.d(TAG, String.format("media info (%d -> %d): local=%s uri=%s",
                         what, extra, s.getLocal(), s.getURI()));
 
@@ -491,6 +730,7 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         public void onBufferingUpdate(MediaPlayer m, int percent) {
+            Sound s = playing();
             Log.d(TAG, String.format("buffering (%d%%): local=%s uri=%s",
                         percent, s.getLocal(), s.getURI()));
             Toast.makeText(ctx,
@@ -500,15 +740,11 @@ public class MainActivity extends AppCompatActivity implements
         }
 
         public void merge(Sound o) {
-            s.merge(o);
-
-            if(upload != null) {
-                if(s.getURI() == null && s.getLocal() != null) {
-                    upload.setVisibility(View.VISIBLE);
-                } else {
-                    upload.setVisibility(View.GONE);
-                }
+            for(Sound p : parts) {
+                if(Arrays.equals(p.getSHA1(), o.getSHA1())) p.merge(o);
             }
+
+            if(upload != null) updateUpload();
         }
     }
 
@@ -523,16 +759,20 @@ public class MainActivity extends AppCompatActivity implements
         public void addSounds(Context ctx, Sound... sounds) {
             for(Sound s : sounds) {
                 SoundItem t = null;
+                SoundItem g = null;
                 for(SoundItem i : ss) {
-                    if(Arrays.equals(i.getSound().getSHA1(), s.getSHA1())) {
+                    if(i.contains(s)) {
                         t = i;
                         break;
                     }
+                    if(i.isSessionOf(s)) g = i;
                 }
-                if(t == null) {
-                    ss.add(new SoundItem(ctx, s));
-                } else {
+                if(t != null) {
                     t.merge(s);
+                } else if(g != null) {
+                    g.addPart(s);
+                } else {
+                    ss.add(new SoundItem(ctx, s));
                 }
             }
 
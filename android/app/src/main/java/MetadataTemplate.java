@@ -12,6 +12,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import org.jaudiotagger.audio.AudioFile;
@@ -19,10 +22,9 @@ import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.codec.digest.MessageDigestAlgorithms;
 
 import org.json.JSONTokener;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -34,8 +36,13 @@ class MetadataTemplate implements Parcelable {
     private String prefix = null;
     private String filename = null;
     private String suffix = null;
-    private Format format = null;
+    private Format[] formats = null;
     private boolean autoUpload = false;
+    private boolean deferEncoding = false;
+    private int segmentMinutes = 0;
+    private boolean streamUpload = false;
+    private boolean trimSilence = false;
+    private int splitSilenceSeconds = 0;
 
     public MetadataTemplate(
             UUID id,
@@ -44,16 +51,41 @@ class MetadataTemplate implements Parcelable {
             boolean autoUpload,
             String prefix,
             String filename) {
+        this(id, title, artist, composer, new Format[] { format },
+                autoUpload, false, 0, false, false, 0, prefix, filename);
+    }
+
+    public MetadataTemplate(
+            UUID id,
+            String title, String artist, String composer,
+            Format[] formats,
+            boolean autoUpload,
+            boolean deferEncoding,
+            int segmentMinutes,
+            boolean streamUpload,
+            boolean trimSilence,
+            int splitSilenceSeconds,
+            String prefix,
+            String filename) {
+        if(formats.length == 0) {
+            throw new IllegalArgumentException("no output formats");
+        }
+
         this.id = id;
 
         this.title = title;
         this.artist = artist;
         this.composer = composer;
         this.autoUpload = autoUpload;
+        this.deferEncoding = deferEncoding;
+        this.segmentMinutes = segmentMinutes;
+        this.streamUpload = streamUpload;
+        this.trimSilence = trimSilence;
+        this.splitSilenceSeconds = splitSilenceSeconds;
         this.filename = filename;
-        this.format = format;
+        this.formats = formats;
         this.prefix = prefix;
-        this.suffix = selectSuffix(this.format);
+        this.suffix = selectSuffix(this.formats[0]);
     }
 
     public static MetadataTemplate freshEmpty() {
@@ -65,11 +97,13 @@ class MetadataTemplate implements Parcelable {
                 "", "%t%s");
     }
 
-    private String selectSuffix(Format format) {
+    public static String selectSuffix(Format format) {
         if(format == Format.FLAC) {
             return ".flac";
         } else if(format == Format.MP3) {
             return ".mp3";
+        } else if(format == Format.WAV) {
+            return ".wav";
         } else {
             throw new RuntimeException("unsupported format");
         }
@@ -85,10 +119,26 @@ class MetadataTemplate implements Parcelable {
     public String getTitle() { return title; }
     public String getSuffix() { return suffix; }
     public String getPrefix() { return prefix; }
-    public Format getFormat() { return format; }
+    public Format getFormat() { return formats[0]; }
+    public List<Format> getFormats() { return Arrays.asList(formats); }
     public String getFilename() { return filename; }
     public boolean getAutoUpload() { return autoUpload; }
 
+    // record raw PCM and encode into the formats once the recording is done
+    public boolean getDeferEncoding() { return deferEncoding; }
+
+    // cut recordings into parts of this length, 0 for a single take
+    public int getSegmentMinutes() { return segmentMinutes; }
+
+    // upload the takes while they're being recorded
+    public boolean getStreamUpload() { return streamUpload; }
+
+    // cut the silence off the start and end of recordings
+    public boolean getTrimSilence() { return trimSilence; }
+
+    // split recordings at silences at least this long, 0 to not split
+    public int getSplitSilenceSeconds() { return splitSilenceSeconds; }
+
     @Override
     public int describeContents () { return 0; }
 
@@ -98,8 +148,13 @@ class MetadataTemplate implements Parcelable {
         out.writeString(title);
         out.writeString(artist);
         out.writeString(composer);
-        out.writeTypedObject(format, flags);
+        out.writeTypedArray(formats, flags);
         out.writeInt(autoUpload ? 1 : 0);
+        out.writeInt(deferEncoding ? 1 : 0);
+        out.writeInt(segmentMinutes);
+        out.writeInt(streamUpload ? 1 : 0);
+        out.writeInt(trimSilence ? 1 : 0);
+        out.writeInt(splitSilenceSeconds);
         out.writeString(prefix);
         out.writeString(filename);
     }
@@ -112,8 +167,13 @@ class MetadataTemplate implements Parcelable {
                         in.readString(),
                         in.readString(),
                         in.readString(),
-                        in.readTypedObject(Format.CREATOR),
+                        in.createTypedArray(Format.CREATOR),
                         in.readInt() > 0 ? true : false,
+                        in.readInt() > 0 ? true : false,
+                        in.readInt(),
+                        in.readInt() > 0 ? true : false,
+                        in.readInt() > 0 ? true : false,
+                        in.readInt(),
                         in.readString(),
                         in.readString());
             }
@@ -124,7 +184,7 @@ class MetadataTemplate implements Parcelable {
         };
 
     private String renderString(String template,
-            OffsetDateTime time, String title) {
+            OffsetDateTime time, String title, String suffix) {
         String s = template;
         if(artist != null) s = s.replaceAll("%a", artist);
         if(composer != null) s = s.replaceAll("%c", composer);
@@ -141,57 +201,145 @@ class MetadataTemplate implements Parcelable {
     }
 
     public String renderTitle(OffsetDateTime time) {
-        return renderString(this.title, time, null);
+        return renderString(this.title, time, null, suffix);
+    }
+
+    // the tags the encoders write, as renderLocalFile would tag the files
+    public StreamTags renderTags(OffsetDateTime time) {
+        return new StreamTags(renderTitle(time), artist, composer,
+                time.format(DateTimeFormatter.ofPattern("y")));
+    }
+
+    public List<Sound> renderLocalFiles(Path dest, List<Path> srcs,
+            OffsetDateTime time, float length) {
+        return renderLocalFiles(dest, srcs, time, length, null, 0, null);
+    }
+
+    public List<Sound> renderLocalFiles(Path dest, List<Path> srcs,
+            OffsetDateTime time, float length, String session, int part,
+            Loudness loudness) {
+        return renderLocalFiles(dest, srcs, null, true, time, length,
+                session, part, loudness);
+    }
+
+    // digests, if not null, holds the digests of the sources as their
+    // output stages computed them (or nulls where there are none), and
+    // unless keepSources the sources are moved to dest
+    public List<Sound> renderLocalFiles(Path dest, List<Path> srcs,
+            List<ContentDigest> digests, boolean keepSources,
+            OffsetDateTime time, float length, String session, int part,
+            Loudness loudness) {
+        ArrayList<Sound> ss = new ArrayList<>(srcs.size());
+        for(int i = 0; i < srcs.size(); ++i) {
+            ss.add(renderLocalFile(dest, srcs.get(i),
+                        digests != null ? digests.get(i) : null, keepSources,
+                        time, length, session, part, loudness));
+        }
+        return ss;
+    }
+
+    public Path renderDestination(Path dest, Path src, OffsetDateTime time) {
+        return renderDestination(dest, src, time, 0);
+    }
+
+    // parts of a segmented recording get their number appended to the
+    // rendered filename
+    public Path renderDestination(Path dest, Path src, OffsetDateTime time,
+            int part) {
+        String suffix = selectSuffix(
+                Format.guessBasedOnFilename(src.toString()));
+
+        if(prefix != null) {
+            dest = dest.resolve(prefix);
+        }
+
+        if(filename == null) {
+            return dest.resolve(src.getFileName());
+        }
+
+        String n = renderString(filename, time, renderTitle(time), suffix);
+        if(part > 0) {
+            String p = String.format("-%03d", part);
+            if(n.endsWith(suffix)) {
+                n = n.substring(0, n.length() - suffix.length()) + p + suffix;
+            } else {
+                n = n + p;
+            }
+        }
+        return dest.resolve(n);
     }
 
     public Sound renderLocalFile(Path dest, Path src,
             OffsetDateTime time, float length) {
+        return renderLocalFile(dest, src, time, length, null, 0, null);
+    }
+
+    public Sound renderLocalFile(Path dest, Path src,
+            OffsetDateTime time, float length, String session, int part,
+            Loudness loudness) {
+        return renderLocalFile(dest, src, null, true, time, length, session,
+                part, loudness);
+    }
+
+    public Sound renderLocalFile(Path dest, Path src, ContentDigest digest,
+            boolean keepSource, OffsetDateTime time, float length,
+            String session, int part, Loudness loudness) {
+        Format format = Format.guessBasedOnFilename(src.toString());
+        String suffix = selectSuffix(format);
         try {
             String title = renderTitle(time);
             Log.d(TAG, String.format("rendered title: %s", title));
 
             if(dest != null) {
-                if(prefix != null) {
-                    dest = dest.resolve(prefix);
-                }
-
-                if(filename == null) {
-                    dest = dest.resolve(src.getFileName());
-                } else {
-                    dest = dest.resolve(renderString(filename, time, title));
-                }
+                dest = renderDestination(dest, src, time, part);
 
                 if(dest.getParent() != null) {
                     Files.createDirectories(dest.getParent());
                 }
 
-                Log.i(TAG, String.format("copying: %s -> %s", src, dest));
-
-                dest = Files.copy(src, dest);
+                TakePlacer.place(src, dest, keepSource);
             } else {
                 dest = src;
             }
 
-            byte[] sha1 = new DigestUtils(MessageDigestAlgorithms.SHA_1)
-                .digest(dest);
+            // raw captures are only kept until they're encoded, and the
+            // encoders tag what they write themselves
+            if(format != Format.WAV && !StreamTags.isPresent(dest, format)) {
+                AudioFile af = AudioFileIO.read(dest.toFile());
+                Tag t = af.getTagOrCreateDefault();
+                t.setField(FieldKey.TITLE, title);
+                t.setField(FieldKey.ARTIST, artist);
+                t.setField(FieldKey.COMPOSER, composer);
+                t.setField(FieldKey.YEAR,
+                        time.format(DateTimeFormatter.ofPattern("y")));
+                if(loudness != null) loudness.tag(t);
+                af.commit();
+                Log.d(TAG, String.format("tagged: %s", dest));
+
+                // tagging rewrites the file
+                digest = null;
+            }
 
-            AudioFile af = AudioFileIO.read(dest.toFile());
-            Tag t = af.getTagOrCreateDefault();
-            t.setField(FieldKey.TITLE, title);
-            t.setField(FieldKey.ARTIST, artist);
-            t.setField(FieldKey.COMPOSER, composer);
-            t.setField(FieldKey.YEAR,
-                    time.format(DateTimeFormatter.ofPattern("y")));
-            af.commit();
-            Log.d(TAG, String.format("tagged: %s", dest));
+            // the hash is of the bytes as they're left on disk
+            byte[] sha1 = digest != null ? digest.getSHA1()
+                : ContentDigest.of(dest).getSHA1();
 
             Sound s = new Sound(title, artist, composer, sha1, length);
             s.setLocal(dest);
             s.setDateTime(time);
             s.setMimeType(format.getMimeType());
-
-            Path m = dest.resolveSibling(dest.getFileName().toString()
-                    .replaceAll(String.format("%s$", suffix), ".json"));
+            if(session != null) s.setSession(session, part);
+            s.setLoudness(loudness);
+
+            // secondary formats share the rendered filename, so their
+            // metadata keeps the suffix to not clobber the primary's
+            String mn = dest.getFileName().toString();
+            if(format == getFormat()) {
+                mn = mn.replaceAll(String.format("%s$", suffix), ".json");
+            } else {
+                mn = mn + ".json";
+            }
+            Path m = dest.resolveSibling(mn);
             s.setMetadata(m);
 
             Files.write(m, s.toJSON().getBytes("UTF-8"));
@@ -213,8 +361,16 @@ class MetadataTemplate implements Parcelable {
             j.put("composer", composer);
             j.put("prefix", prefix);
             j.put("filename", filename);
-            j.put("format", format.toString());
+            j.put("format", formats[0].toString());
+            JSONArray fs = new JSONArray();
+            for(Format f : formats) fs.put(f.toString());
+            j.put("formats", fs);
             j.put("auto_upload", autoUpload);
+            j.put("defer_encoding", deferEncoding);
+            j.put("segment_minutes", segmentMinutes);
+            j.put("stream_upload", streamUpload);
+            j.put("trim_silence", trimSilence);
+            j.put("split_silence_seconds", splitSilenceSeconds);
         } catch(JSONException e) {
             throw new RuntimeException("unable to populate JSON object", e);
         }
@@ -232,13 +388,31 @@ class MetadataTemplate implements Parcelable {
         }
 
         try {
+            Format[] formats = null;
+            if(j.has("formats")) {
+                JSONArray fs = j.getJSONArray("formats");
+                formats = new Format[fs.length()];
+                for(int i = 0; i < fs.length(); ++i) {
+                    formats[i] = Format.fromString(fs.getString(i));
+                }
+            } else {
+                formats = new Format[] {
+                    Format.fromString(j.getString("format"))
+                };
+            }
+
             return new MetadataTemplate(
                     UUID.fromString(j.getString("id")),
                     j.getString("title"),
                     j.getString("artist"),
                     j.getString("composer"),
-                    Format.fromString(j.getString("format")),
+                    formats,
                     j.has("auto_upload") ? j.getBoolean("auto_upload") : false,
+                    j.optBoolean("defer_encoding", false),
+                    j.optInt("segment_minutes", 0),
+                    j.optBoolean("stream_upload", false),
+                    j.optBoolean("trim_silence", false),
+                    j.optInt("split_silence_seconds", 0),
                     j.getString("prefix"),
                     j.getString("filename"));
         } catch(JSONException e) {
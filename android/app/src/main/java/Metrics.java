@@ -0,0 +1,127 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+// Process wide counters, gauges and latency histograms for the recording
+// and upload paths. Metrics are registered once (typically as static
+// fields) and updating them is lock and allocation free, so they can be
+// used per chunk on the capture and encoder threads.
+class Metrics {
+    private static final Map<String, Object> registry = new TreeMap<>();
+
+    public static class Counter {
+        private final AtomicLong v = new AtomicLong(0);
+        public void inc() { v.incrementAndGet(); }
+        public void add(long n) { v.addAndGet(n); }
+        public long get() { return v.get(); }
+    }
+
+    public static class Gauge {
+        private volatile long v = 0;
+        public void set(long v) { this.v = v; }
+        public long get() { return v; }
+    }
+
+    // durations in nanoseconds, bucket i counting those in [2^i, 2^(i+1))
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        public void record(long nanos) {
+            if(nanos < 1) nanos = 1;
+            int b = Math.min(BUCKETS - 1,
+                    63 - Long.numberOfLeadingZeros(nanos));
+            counts.incrementAndGet(b);
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+
+            long m = max.get();
+            while(nanos > m && !max.compareAndSet(m, nanos)) {
+                m = max.get();
+            }
+        }
+
+        // upper bound of the bucket holding the given quantile
+        private long quantile(double q) {
+            long n = count.get();
+            long k = (long)Math.ceil(n * q), c = 0;
+            for(int b = 0; b < BUCKETS; ++b) {
+                c += counts.get(b);
+                if(c >= k && c > 0) return 1L << (b + 1);
+            }
+            return 0;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject j = new JSONObject();
+            long n = count.get();
+            j.put("count", n);
+            j.put("mean_ms", n == 0 ? 0 : sum.get() / 1e6 / n);
+            j.put("max_ms", max.get() / 1e6);
+            j.put("p50_ms", quantile(0.5) / 1e6);
+            j.put("p90_ms", quantile(0.9) / 1e6);
+            j.put("p99_ms", quantile(0.99) / 1e6);
+            return j;
+        }
+    }
+
+    private static synchronized <T> T register(String name, T m) {
+        if(registry.containsKey(name)) {
+            throw new IllegalArgumentException("metric already registered: "
+                    + name);
+        }
+        registry.put(name, m);
+        return m;
+    }
+
+    public static Counter counter(String name) {
+        return register(name, new Counter());
+    }
+
+    public static Gauge gauge(String name) {
+        return register(name, new Gauge());
+    }
+
+    public static Histogram histogram(String name) {
+        return register(name, new Histogram());
+    }
+
+    public static synchronized String toJSON() {
+        JSONObject j = new JSONObject();
+        try {
+            for(Map.Entry<String, Object> e : registry.entrySet()) {
+                Object m = e.getValue();
+                if(m instanceof Counter) {
+                    j.put(e.getKey(), ((Counter)m).get());
+                } else if(m instanceof Gauge) {
+                    j.put(e.getKey(), ((Gauge)m).get());
+                } else if(m instanceof Histogram) {
+                    j.put(e.getKey(), ((Histogram)m).toJSON());
+                }
+            }
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+        return j.toString();
+    }
+
+    public static void dump(Path p) throws IOException {
+        Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+        Files.write(tmp, toJSON().getBytes("UTF-8"));
+        Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
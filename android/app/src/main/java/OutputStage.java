@@ -0,0 +1,516 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+// Write-behind stage between an encoder and its output file: encoded bytes
+// are gathered into large blocks which a writer thread appends to the file.
+// The file is grown by preallocating large extents ahead of the writes (and
+// truncated to what was actually written when closed) and synced according
+// to an FsyncPolicy.
+//
+// The writer also digests the bytes as it appends them (see ContentDigest),
+// so the file needn't be read again to hash it. Patching bytes already
+// digested (writeAt) spoils that, and as SHA-1 can't be resumed from the
+// middle of a file the whole file is then hashed once more when closed.
+// Encoders that are known to rewrite their header on closing say so with
+// deferDigest, which skips the whole file's digests while writing. The MD5s
+// of the parts past the patched bytes are kept either way and not computed
+// again.
+class OutputStage {
+    private static final int BLOCK_BYTES = 256*1024;
+    private static final int BLOCKS = 8;
+    private static final long PREALLOCATE_BYTES = 8*1024*1024;
+
+    private static final Metrics.Counter BYTES_WRITTEN =
+        Metrics.counter("output_bytes_written");
+    private static final Metrics.Histogram WRITE =
+        Metrics.histogram("output_write");
+    private static final Metrics.Histogram SYNC =
+        Metrics.histogram("output_sync");
+    private static final Metrics.Counter BYTES_REHASHED =
+        Metrics.counter("output_bytes_rehashed");
+
+    public static class FsyncPolicy {
+        private final long nanos;
+        private final long bytes;
+
+        private FsyncPolicy(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        public static FsyncPolicy everySeconds(int seconds) {
+            return new FsyncPolicy(seconds * 1000000000L, 0);
+        }
+
+        public static FsyncPolicy everyMegabytes(int mb) {
+            return new FsyncPolicy(0, mb * 1024L * 1024L);
+        }
+
+        public static FsyncPolicy onStop() {
+            return new FsyncPolicy(0, 0);
+        }
+
+        // "stop", "seconds:N" or "mb:N"
+        public static FsyncPolicy fromString(String s) {
+            String[] ps = s.split(":");
+            if(ps.length == 1 && ps[0].equals("stop")) {
+                return onStop();
+            } else if(ps.length == 2 && ps[0].equals("seconds")) {
+                return everySeconds(Integer.parseInt(ps[1]));
+            } else if(ps.length == 2 && ps[0].equals("mb")) {
+                return everyMegabytes(Integer.parseInt(ps[1]));
+            } else {
+                throw new IllegalArgumentException("invalid fsync policy: " + s);
+            }
+        }
+
+        public String toString() {
+            if(nanos > 0) return "seconds:" + nanos / 1000000000L;
+            if(bytes > 0) return "mb:" + bytes / (1024*1024);
+            return "stop";
+        }
+    }
+
+    // a frame boundary in the file and the number of (interleaved) samples
+    // the bytes up to it represent
+    public static class Mark {
+        public final long bytes;
+        public final long samples;
+
+        public Mark(long bytes, long samples) {
+            this.bytes = bytes;
+            this.samples = samples;
+        }
+    }
+
+    private static class Block {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_BYTES);
+        long pos = 0;
+        long started = 0;
+        // the block's last mark, as primitives so marking doesn't allocate
+        long markBytes = -1;
+        long markSamples = 0;
+    }
+
+    private static final Block END = new Block();
+    private static final Block DRAIN = new Block();
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final FileChannel ch;
+    private final FsyncPolicy policy;
+
+    private final BlockingQueue<Block> free =
+        new ArrayBlockingQueue<>(BLOCKS);
+    private final BlockingQueue<Block> filled =
+        new ArrayBlockingQueue<>(BLOCKS + 1);
+    private final BlockingQueue<Block> drained =
+        new ArrayBlockingQueue<>(1);
+    private final Thread writer;
+
+    // producer side
+    private Block current = null;
+    private long size = 0;
+
+    // writer side
+    private long allocated = 0;
+    private boolean preallocate = true;
+    private long unsyncedBytes = 0;
+    private long lastSync = System.nanoTime();
+    private volatile IOException failure = null;
+    private final ContentDigest digest = new ContentDigest();
+
+    // offset of the first digested byte that was patched, or of where the
+    // digest stopped
+    private volatile long spoiled = Long.MAX_VALUE;
+    // the end of the bytes rewritten by writeAt
+    private volatile long patched = 0;
+    private volatile ContentDigest finished = null;
+
+    private volatile int highWaterMark = 0;
+    private volatile long written = 0;
+    private volatile Mark durable = null;
+
+    // every mark, when asked to keep them
+    private long[] indexBytes = null;
+    private long[] indexSamples = null;
+    private int indexed = 0;
+    private volatile StreamingUpload upload = null;
+    private volatile long maxWriteNanos = 0;
+    private volatile long maxSyncNanos = 0;
+    private volatile long syncs = 0;
+
+    public OutputStage(Path path, FsyncPolicy policy) throws IOException {
+        this.path = path;
+        this.policy = policy;
+
+        file = new RandomAccessFile(path.toFile(), "rw");
+        file.setLength(0);
+        ch = file.getChannel();
+
+        for(int i = 0; i < BLOCKS; ++i) {
+            free.add(new Block());
+        }
+        current = take(free);
+        current.started = System.nanoTime();
+
+        writer = new Thread(new Runnable() {
+            public void run() { write(); }
+        }, "AudioJournal-writer");
+        writer.start();
+    }
+
+    public Path getPath() { return path; }
+
+    // logical size of the file, including bytes not yet written
+    public synchronized long size() { return size; }
+
+    public int getQueueDepth() { return filled.size(); }
+    public int getHighWaterMark() { return highWaterMark; }
+    public long getBytesWritten() { return written; }
+
+    // the latest mark whose bytes have all been handed to the file
+    public Mark getDurableMark() { return durable; }
+
+    // the digest of the file's final bytes, once closed
+    public ContentDigest getDigest() { return finished; }
+
+    // hash the file when it's closed instead of while it's being written,
+    // since the bytes at pos will be rewritten then anyway
+    public synchronized void deferDigest(long pos) {
+        spoiled = Math.min(spoiled, pos);
+    }
+
+    // to be told about the bytes as they reach the file
+    public void setUpload(StreamingUpload upload) { this.upload = upload; }
+
+    // called by encoders whenever what has been written so far ends on a
+    // frame boundary
+    public synchronized void mark(long samples) {
+        current.markBytes = size;
+        current.markSamples = samples;
+
+        if(indexBytes != null) {
+            if(indexed == indexBytes.length) {
+                indexBytes = Arrays.copyOf(indexBytes, 2*indexed);
+                indexSamples = Arrays.copyOf(indexSamples, 2*indexed);
+            }
+            indexBytes[indexed] = size;
+            indexSamples[indexed] = samples;
+            indexed += 1;
+        }
+    }
+
+    // keep all marks from now on, so the file can be cut at them later
+    public synchronized void keepIndex() {
+        if(indexBytes != null) return;
+        indexBytes = new long[1024];
+        indexSamples = new long[1024];
+    }
+
+    // the marks kept, in order
+    public synchronized Mark[] getIndex() {
+        Mark[] ms = new Mark[indexed];
+        for(int i = 0; i < indexed; ++i) {
+            ms[i] = new Mark(indexBytes[i], indexSamples[i]);
+        }
+        return ms;
+    }
+    public long getMaxWriteNanos() { return maxWriteNanos; }
+    public long getMaxSyncNanos() { return maxSyncNanos; }
+    public long getSyncs() { return syncs; }
+
+    public synchronized void write(byte[] bs, int offset, int length)
+            throws IOException {
+        while(length > 0) {
+            int n = Math.min(length, current.buffer.remaining());
+            current.buffer.put(bs, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+
+            if(!current.buffer.hasRemaining()) submit();
+        }
+        submitIfDue();
+    }
+
+    public synchronized void write(ByteBuffer b) throws IOException {
+        while(b.hasRemaining()) {
+            int n = Math.min(b.remaining(), current.buffer.remaining());
+            ByteBuffer s = b.duplicate();
+            s.limit(s.position() + n);
+            current.buffer.put(s);
+            b.position(b.position() + n);
+            size += n;
+
+            if(!current.buffer.hasRemaining()) submit();
+        }
+        submitIfDue();
+    }
+
+    // overwrites already written bytes (e.g. a header), after waiting for
+    // everything queued to reach the file
+    public synchronized void writeAt(ByteBuffer b, long pos)
+            throws IOException {
+        drain();
+        if(pos < digest.getBytes()) spoiled = Math.min(spoiled, pos);
+        while(b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+        patched = Math.max(patched, pos);
+        size = Math.max(size, pos);
+        current.pos = size;
+    }
+
+    public synchronized void drain() throws IOException {
+        submit();
+        put(filled, DRAIN);
+        take(drained);
+        checkFailure();
+    }
+
+    public void close() throws IOException {
+        // the writer is stopped even if it's failed, so that the file's
+        // closed
+        synchronized(this) {
+            try {
+                submit();
+            } finally {
+                put(filled, END);
+            }
+        }
+
+        while(true) {
+            try {
+                writer.join();
+                break;
+            } catch(InterruptedException e) {
+                continue;
+            }
+        }
+
+        try {
+            checkFailure();
+            sync();
+            file.setLength(size);
+        } finally {
+            file.close();
+        }
+
+        if(spoiled < size) {
+            long t = System.nanoTime();
+            // the parts are only intact if every byte was digested in order
+            finished = ContentDigest.of(path,
+                    digest.getBytes() == size ? digest : null, patched);
+            BYTES_REHASHED.add(size);
+            Log.d(TAG, String.format(
+                "output stage (%s): rehashed from %d, patched up to %d: %.2fms",
+                path.getFileName(), spoiled, patched,
+                (System.nanoTime() - t) / 1e6));
+        } else {
+            digest.finish();
+            finished = digest;
+        }
+
+        Log.i(TAG, String.format(
+            "output stage (%s): bytes=%d queue high-water=%d/%d write max=%.2fms syncs=%d sync max=%.2fms",
+            path.getFileName(), written, highWaterMark, BLOCKS,
+            maxWriteNanos / 1e6, syncs, maxSyncNanos / 1e6));
+    }
+
+    public void collectStats(SessionStats stats, String prefix) {
+        stats.put(prefix + "_bytes", written);
+        stats.put(prefix + "_queue_high_water", highWaterMark);
+        stats.put(prefix + "_write_max_ms", maxWriteNanos / 1e6);
+        stats.put(prefix + "_syncs", syncs);
+        stats.put(prefix + "_sync_max_ms", maxSyncNanos / 1e6);
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if(e != null) {
+            throw new IOException("unable to write: " + path, e);
+        }
+    }
+
+    // with a time based policy, don't let bytes linger in a partial block
+    private void submitIfDue() throws IOException {
+        if(policy.nanos > 0 && current.buffer.position() > 0
+                && System.nanoTime() - current.started >= policy.nanos) {
+            submit();
+        }
+    }
+
+    private void submit() throws IOException {
+        checkFailure();
+        if(current.buffer.position() == 0) return;
+
+        current.buffer.flip();
+        put(filled, current);
+
+        int d = filled.size();
+        if(d > highWaterMark) highWaterMark = d;
+
+        current = take(free);
+        current.buffer.clear();
+        current.markBytes = -1;
+        current.pos = size;
+        current.started = System.nanoTime();
+    }
+
+    private void write() {
+        while(true) {
+            Block b = null;
+            if(policy.nanos > 0) {
+                long w = policy.nanos;
+                if(unsyncedBytes > 0) {
+                    w -= System.nanoTime() - lastSync;
+                }
+                b = poll(filled, Math.max(0, w));
+            } else {
+                b = take(filled);
+            }
+
+            if(b == END) return;
+            if(b == DRAIN) {
+                put(drained, DRAIN);
+                continue;
+            }
+
+            if(b != null && failure == null) {
+                try {
+                    append(b);
+                } catch(IOException e) {
+                    Log.e(TAG, "output stage failed: " + path, e);
+                    failure = e;
+                }
+            }
+            if(b != null) put(free, b);
+
+            if(failure == null && isSyncDue()) {
+                try {
+                    sync();
+                } catch(IOException e) {
+                    Log.e(TAG, "unable to sync: " + path, e);
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void append(Block b) throws IOException {
+        long end = b.pos + b.buffer.remaining();
+        if(preallocate && end > allocated) {
+            preallocate(end);
+        }
+
+        // once spoiled the part MD5s are still worth keeping for the parts
+        // that won't be patched
+        if(b.pos == digest.getBytes()) {
+            if(spoiled != Long.MAX_VALUE) digest.updatePartsOnly();
+            digest.update(b.buffer);
+        } else {
+            spoiled = Math.min(spoiled, Math.min(b.pos, digest.getBytes()));
+            digest.updatePartsOnly();
+        }
+
+        long t = System.nanoTime();
+        long pos = b.pos;
+        while(b.buffer.hasRemaining()) {
+            pos += ch.write(b.buffer, pos);
+        }
+        long d = System.nanoTime() - t;
+        if(d > maxWriteNanos) maxWriteNanos = d;
+        WRITE.record(d);
+        BYTES_WRITTEN.add(pos - b.pos);
+
+        written += pos - b.pos;
+        unsyncedBytes += pos - b.pos;
+
+        if(b.markBytes >= 0) {
+            durable = new Mark(b.markBytes, b.markSamples);
+            b.markBytes = -1;
+        }
+
+        StreamingUpload u = upload;
+        if(u != null) u.appended(pos);
+    }
+
+    private void preallocate(long end) {
+        long to = (end / PREALLOCATE_BYTES + 1) * PREALLOCATE_BYTES;
+        try {
+            FileDescriptor fd = file.getFD();
+            Os.posix_fallocate(fd, allocated, to - allocated);
+            allocated = to;
+        } catch(IOException|ErrnoException e) {
+            Log.w(TAG, "unable to preallocate, continuing without: " + path, e);
+            preallocate = false;
+        }
+    }
+
+    private boolean isSyncDue() {
+        if(policy.bytes > 0) return unsyncedBytes >= policy.bytes;
+        if(policy.nanos > 0) {
+            return unsyncedBytes > 0
+                && System.nanoTime() - lastSync >= policy.nanos;
+        }
+        return false;
+    }
+
+    private void sync() throws IOException {
+        long t = System.nanoTime();
+        ch.force(false);
+        lastSync = System.nanoTime();
+
+        long d = lastSync - t;
+        if(d > maxSyncNanos) maxSyncNanos = d;
+        SYNC.record(d);
+        syncs += 1;
+        unsyncedBytes = 0;
+    }
+
+    private static Block take(BlockingQueue<Block> q) {
+        while(true) {
+            try {
+                return q.take();
+            } catch(InterruptedException e) {
+                continue;
+            }
+        }
+    }
+
+    private static Block poll(BlockingQueue<Block> q, long nanos) {
+        try {
+            return q.poll(nanos, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e) {
+            return null;
+        }
+    }
+
+    private static void put(BlockingQueue<Block> q, Block b) {
+        while(true) {
+            try {
+                q.put(b);
+                return;
+            } catch(InterruptedException e) {
+                continue;
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package io.rootmos.audiojournal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A min/max pyramid of interleaved 16-bit PCM, built chunk by chunk while
+// recording so waveforms can be drawn without decoding the audio.
+//
+// Each bin of the finest level holds the smallest and largest sample (over
+// all channels, 8-bit) of BASE_FRAMES frames, and each coarser level merges
+// FACTOR bins of the level below. So the pyramid is about a third larger
+// than its finest level, about 500 bytes per second at 48kHz, and a reader
+// only loads the level matching the width it draws at.
+//
+// File format (big-endian): "AJPK", version (short), channels (short),
+// sample rate (int), frames (long), levels (short), per level its frames
+// per bin (int) and bins (int), and then each level's bins as pairs of
+// (min, max) bytes, finest level first.
+class Peaks {
+    private static final int MAGIC = 0x414a504b;
+    private static final short VERSION = 1;
+
+    public static final int BASE_FRAMES = 256;
+    public static final int FACTOR = 4;
+    private static final int MAX_LEVELS = 8;
+
+    private static class Level {
+        final int framesPerBin;
+        byte[] bins = new byte[1024];
+        int count = 0;
+
+        // the bin being filled
+        byte min = Byte.MAX_VALUE, max = Byte.MIN_VALUE;
+        int filled = 0;
+
+        Level(int framesPerBin) { this.framesPerBin = framesPerBin; }
+
+        void close() {
+            if(2*count + 2 > bins.length) {
+                bins = Arrays.copyOf(bins, 2*bins.length);
+            }
+            bins[2*count] = min;
+            bins[2*count + 1] = max;
+            count += 1;
+            min = Byte.MAX_VALUE;
+            max = Byte.MIN_VALUE;
+            filled = 0;
+        }
+    }
+
+    private final int sampleRate;
+    private final int channels;
+    private final List<Level> levels = new ArrayList<>();
+    private long frames = 0;
+    private boolean finished = false;
+
+    // the finest level's bin being filled, as 16-bit samples
+    private short min = Short.MAX_VALUE, max = Short.MIN_VALUE;
+    private int filled = 0;
+
+    public Peaks(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        levels.add(new Level(BASE_FRAMES));
+    }
+
+    private Peaks(int sampleRate, int channels, long frames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.frames = frames;
+        this.finished = true;
+    }
+
+    public void update(short[] samples, int length) {
+        int binSamples = BASE_FRAMES * channels;
+        for(int i = 0; i < length; ++i) {
+            short s = samples[i];
+            if(s < min) min = s;
+            if(s > max) max = s;
+            if(++filled == binSamples) {
+                closeBase();
+            }
+        }
+        frames += length / channels;
+    }
+
+    private void closeBase() {
+        Level l = levels.get(0);
+        l.min = (byte)(min >> 8);
+        l.max = (byte)(max >> 8);
+        min = Short.MAX_VALUE;
+        max = Short.MIN_VALUE;
+        filled = 0;
+        close(0);
+    }
+
+    // closes the level's current bin and merges it into the next level
+    private void close(int i) {
+        Level l = levels.get(i);
+        byte lo = l.min, hi = l.max;
+        l.close();
+
+        if(i + 1 < levels.size()) {
+            merge(i + 1, lo, hi);
+        } else if(levels.size() < MAX_LEVELS && l.count == FACTOR) {
+            // a coarser level is started once it gets a full bin
+            levels.add(new Level(l.framesPerBin * FACTOR));
+            for(int b = 0; b < FACTOR; ++b) {
+                merge(i + 1, l.bins[2*b], l.bins[2*b + 1]);
+            }
+        }
+    }
+
+    private void merge(int i, byte lo, byte hi) {
+        Level l = levels.get(i);
+        if(lo < l.min) l.min = lo;
+        if(hi > l.max) l.max = hi;
+        if(++l.filled == FACTOR) {
+            close(i);
+        }
+    }
+
+    // closes the partially filled bins, no more samples can be added
+    private void finish() {
+        if(finished) return;
+        finished = true;
+
+        if(filled > 0) closeBase();
+        for(int i = 1; i < levels.size(); ++i) {
+            if(levels.get(i).filled > 0) close(i);
+        }
+    }
+
+    // the peaks of the frames [from, to), to BASE_FRAMES, of a recording
+    // that's finished
+    public Peaks slice(long from, long to) {
+        finish();
+
+        Peaks p = new Peaks(sampleRate, channels);
+        Level src = levels.get(0), dst = p.levels.get(0);
+        int a = (int)(from / BASE_FRAMES);
+        int b = (int)Math.min(src.count, (to + BASE_FRAMES - 1) / BASE_FRAMES);
+        for(int i = a; i < b; ++i) {
+            dst.min = src.bins[2*i];
+            dst.max = src.bins[2*i + 1];
+            p.close(0);
+        }
+        p.frames = Math.min(to, frames) - from;
+        return p;
+    }
+
+    public int getSampleRate() { return sampleRate; }
+    public int getChannels() { return channels; }
+    public long getFrames() { return frames; }
+    public int getLevels() { return levels.size(); }
+    public int getFramesPerBin(int level) {
+        return levels.get(level).framesPerBin;
+    }
+    public int getBins(int level) { return levels.get(level).count; }
+
+    // the high byte of the smallest and largest sample in the bin
+    public byte getMin(int level, int bin) {
+        return levels.get(level).bins[2*bin];
+    }
+    public byte getMax(int level, int bin) {
+        return levels.get(level).bins[2*bin + 1];
+    }
+
+    public void write(Path p) throws IOException {
+        finish();
+
+        Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+        try(DataOutputStream o = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            o.writeInt(MAGIC);
+            o.writeShort(VERSION);
+            o.writeShort(channels);
+            o.writeInt(sampleRate);
+            o.writeLong(frames);
+            o.writeShort(levels.size());
+            for(Level l : levels) {
+                o.writeInt(l.framesPerBin);
+                o.writeInt(l.count);
+            }
+            for(Level l : levels) {
+                o.write(l.bins, 0, 2*l.count);
+            }
+        }
+        Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // reads only the coarsest level with at least the given number of bins
+    // (or the finest one if none has that many), skipping the others
+    public static Peaks read(Path p, int bins) throws IOException {
+        try(DataInputStream i = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(p)))) {
+            if(i.readInt() != MAGIC) {
+                throw new IOException("not a peaks file: " + p);
+            }
+            short v = i.readShort();
+            if(v != VERSION) {
+                throw new IOException(String.format(
+                            "unsupported peaks version (%d): %s", v, p));
+            }
+            int channels = i.readShort();
+            int sampleRate = i.readInt();
+            long frames = i.readLong();
+
+            int n = i.readShort();
+            int[] fpbs = new int[n], counts = new int[n];
+            int pick = 0;
+            for(int l = 0; l < n; ++l) {
+                fpbs[l] = i.readInt();
+                counts[l] = i.readInt();
+                if(counts[l] >= bins) pick = l;
+            }
+
+            for(int l = 0; l < pick; ++l) skip(i, 2*counts[l]);
+
+            Peaks ps = new Peaks(sampleRate, channels, frames);
+            Level l = new Level(fpbs[pick]);
+            l.bins = new byte[2*counts[pick]];
+            l.count = counts[pick];
+            i.readFully(l.bins);
+            ps.levels.add(l);
+            return ps;
+        }
+    }
+
+    private static void skip(DataInputStream i, int n) throws IOException {
+        while(n > 0) {
+            int s = i.skipBytes(n);
+            if(s <= 0) throw new IOException("unexpected end of peaks file");
+            n -= s;
+        }
+    }
+}
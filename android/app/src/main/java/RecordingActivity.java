@@ -18,6 +18,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
@@ -112,7 +113,8 @@ public class RecordingActivity extends Activity implements
 
     private void updateTemplate(MetadataTemplate t) {
         binding.status.titleTemplateValue.setText(template.getTitle());
-        binding.status.formatValue.setText(template.getFormat().toString());
+        binding.status.formatValue.setText(
+                TextUtils.join(" + ", template.getFormats()));
 
         if(template.getPrefix() != null) {
             binding.status.prefixValue.setText(t.getPrefix().toString());
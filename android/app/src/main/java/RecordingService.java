@@ -5,19 +5,28 @@ import static io.rootmos.audiojournal.Common.TAG;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Service;
 import android.os.IBinder;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.content.Intent;
 import android.content.Context;
 import android.content.ServiceConnection;
@@ -27,13 +36,36 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.TaskStackBuilder;
 import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3Client;
 import android.media.AudioRecord;
 import android.media.AudioFormat;
 
 public class RecordingService extends Service {
     private static int NOTIFICATION_ID = 603141;
+    private static int JOURNAL_SECONDS = 2;
+    private static int DISPLAY_MILLIS = 33;
+    private static int NOTIFICATION_MILLIS = 1000;
+
+    private static final Metrics.Histogram CAPTURE_READ =
+        Metrics.histogram("capture_read");
+    private static final Metrics.Histogram ENCODER_UPDATE =
+        Metrics.histogram("encoder_update");
+    private static final Metrics.Counter CLIPPED_SAMPLES =
+        Metrics.counter("clipped_samples");
+    private static final Metrics.Gauge RING_OCCUPANCY =
+        Metrics.gauge("capture_ring_occupancy");
+    private static final Metrics.Gauge CHUNK_FRAMES =
+        Metrics.gauge("capture_chunk_frames");
     private NotificationManager nm = null;
+    private ThrottledNotifier notifier = null;
+    private NotificationChannel nc = null;
+    private PendingIntent showIntent = null;
+    private Notification.Action stopAction = null;
     private Executor ex = null;
+    private Executor uploads = null;
+    private Handler handler = null;
+    private Settings settings = new Settings(this);
 
     private RecordTask recordTask = null;
     private boolean stopWhenNotRecording = false;
@@ -69,6 +101,8 @@ public class RecordingService extends Service {
         public void removeStateChangeListener(OnStateChangeListener l) {
             stateListeners.remove(l);
         }
+
+        public String getMetrics() { return Metrics.toJSON(); }
     }
 
     public boolean isRecording() {
@@ -78,7 +112,29 @@ public class RecordingService extends Service {
     @Override
     public void onCreate() {
         nm = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        notifier = new ThrottledNotifier(nm, NOTIFICATION_MILLIS);
+
+        nc = new NotificationChannel(
+                "AUDIO_JOURNAL_LIVE", "Recording status",
+                NotificationManager.IMPORTANCE_LOW);
+        nm.createNotificationChannel(nc);
+
+        TaskStackBuilder sb = TaskStackBuilder.create(this);
+        sb.addNextIntentWithParentStack(mkShowIntent());
+        showIntent = sb.getPendingIntent(0,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        PendingIntent ps = PendingIntent.getService(this, 0, mkStopIntent(), 0);
+        stopAction = new Notification.Action.Builder(
+            R.drawable.stop_recording, getText(R.string.stop_recording), ps)
+            .build();
+
         ex = Executors.newFixedThreadPool(1);
+        uploads = Executors.newFixedThreadPool(1);
+        handler = new Handler(Looper.getMainLooper());
+
+        // queued ahead of any recording on the same executor
+        new RecoverTask().executeOnExecutor(ex);
     }
 
     @Override
@@ -151,7 +207,9 @@ public class RecordingService extends Service {
     @Override
     public void onDestroy() {
         if(isRecording()) {
-            throw new RuntimeException("destroying service while still recording");
+            // the session journal lets the takes be recovered next time
+            Log.e(TAG, "destroying service while still recording");
+            recordTask.stop();
         }
 
         Log.i(TAG, "recording service destroyed");
@@ -171,31 +229,16 @@ public class RecordingService extends Service {
         return true;
     }
 
-    private Notification buildNotification(Progress progress) {
-        TaskStackBuilder sb = TaskStackBuilder.create(this);
-        sb.addNextIntentWithParentStack(mkShowIntent());
-        PendingIntent p = sb.getPendingIntent(0,
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        PendingIntent ps = PendingIntent.getService(this, 0, mkStopIntent(), 0);
-        Notification.Action a = new Notification.Action.Builder(
-            R.drawable.stop_recording, getText(R.string.stop_recording), ps)
-            .build();
-
-        NotificationChannel nc = new NotificationChannel(
-                "AUDIO_JOURNAL_LIVE", "Recording status",
-                NotificationManager.IMPORTANCE_LOW);
-        nm.createNotificationChannel(nc);
-
+    private Notification buildNotification(String duration) {
         Notification.Builder b = new Notification.Builder(this, nc.getId())
             .setSmallIcon(R.drawable.start_recording)
             .setSubText("recording...")
-            .setContentIntent(p)
+            .setContentIntent(showIntent)
             .setContentTitle(recordTask.getTitle())
-            .addAction(a);
+            .addAction(stopAction);
 
-        if(progress != null) {
-            b.setContentText(Utils.formatDuration(progress.getSeconds()));
+        if(duration != null) {
+            b.setContentText(duration);
         }
 
         return b.build();
@@ -225,15 +268,16 @@ public class RecordingService extends Service {
         }
     }
 
-    private void stopped(MetadataTemplate mt, Sound s) {
+    private void stopped(MetadataTemplate mt, List<Sound> ss) {
         recordTask = null;
         stopForeground(STOP_FOREGROUND_REMOVE);
-        for(OnStateChangeListener l : stateListeners) {
-            l.recordingCompleted(s);
-        }
+        notifier.cancel(NOTIFICATION_ID);
+        completed(mt, ss);
 
-        if(mt.getAutoUpload()) {
-            UploadService.upload(this, s);
+        try {
+            Metrics.dump(settings.getMetricsFile());
+        } catch(IOException e) {
+            Log.w(TAG, "unable to dump metrics", e);
         }
 
         if(stopWhenNotRecording) {
@@ -241,6 +285,47 @@ public class RecordingService extends Service {
         }
     }
 
+    private void completed(MetadataTemplate mt, List<Sound> ss) {
+        for(Sound s : ss) {
+            for(OnStateChangeListener l : stateListeners) {
+                l.recordingCompleted(s);
+            }
+
+            // deferred recordings are uploaded once they've been encoded,
+            // streamed ones when their uploads have been completed
+            if(mt.getAutoUpload() && !mt.getDeferEncoding()
+                    && !mt.getStreamUpload()) {
+                UploadService.upload(this, s);
+            }
+        }
+    }
+
+    private class RecoverTask extends AsyncTask<Void, Void, List<Sound>> {
+        @Override
+        protected List<Sound> doInBackground(Void... params) {
+            List<Sound> ss = new ArrayList<>();
+            for(Path p : SessionJournal.list(settings.getTakesDir())) {
+                Log.i(TAG, "recovering interrupted recording: " + p);
+                try {
+                    ss.addAll(SessionJournal.recover(
+                                RecordingService.this, p));
+                } catch(Exception e) {
+                    Log.e(TAG, "unable to recover: " + p, e);
+                }
+            }
+            return ss;
+        }
+
+        @Override
+        protected void onPostExecute(List<Sound> ss) {
+            for(Sound s : ss) {
+                for(OnStateChangeListener l : stateListeners) {
+                    l.recordingCompleted(s);
+                }
+            }
+        }
+    }
+
     public class Started {
         OffsetDateTime time = null;
         MetadataTemplate template = null;
@@ -301,16 +386,44 @@ public class RecordingService extends Service {
         public long getClippedSamples() { return clipped; }
     }
 
-    private class RecordTask extends AsyncTask<Void, Progress, Sound> {
+    private class RecordTask extends AsyncTask<Void, Void, List<Sound>> {
         private MetadataTemplate template = null;
         private Path destDir = null;
         private Path takesDir = null;
 
         private AudioRecord recorder = null;
-        private Encoder encoder = null;
-        private Path path = null;
+        private CapturePlanner planner = null;
         private OffsetDateTime time = null;
+        private String fn = null;
+        private String session = null;
+        private List<Format> formats = null;
+        private int threads = 0;
         private AtomicBoolean stopping = new AtomicBoolean(false);
+        private volatile IOException failure = null;
+
+        // the latest progress, written by the encoder thread and picked up
+        // at display rate on the main thread; the peak is the largest since
+        // it was last displayed
+        private volatile long shownSamples = 0;
+        private volatile long shownClipped = 0;
+        private volatile short shownMax = 0;
+        private final AtomicInteger shownPeak = new AtomicInteger(0);
+        private int sampleRate = 0;
+        private int channels = 0;
+
+        private final Runnable display = new Runnable() {
+            public void run() { display(); }
+        };
+
+        // the segment being recorded into and the finished ones being
+        // finalized in the background
+        private Segment segment = null;
+        private long segmentSamples = 0;
+        private long samplesFinished = 0;
+        private ExecutorService finalizer = null;
+
+        // set when the takes are uploaded while recording
+        private AmazonS3Client s3 = null;
 
         public void stop() { stopping.set(true); }
 
@@ -324,31 +437,106 @@ public class RecordingService extends Service {
             return template.renderTitle(time);
         }
 
+        // the takes of one segment of the recording, or of the whole
+        // recording when not rolling (part 0)
+        private class Segment {
+            final int part;
+            final List<Path> paths = new ArrayList<>();
+            final Encoder encoder;
+            final Encoder[] encoders;
+            final StreamingUpload[] uploads;
+            final SessionJournal journal;
+            final LoudnessMeter meter;
+            final Peaks peaks;
+            final SilenceDetector silence;
+            final StreamTags tags;
+
+            public Segment(int part) throws IOException {
+                this.part = part;
+
+                String n = fn;
+                if(part > 0) n += String.format("-%03d", part);
+                for(Format f : formats) {
+                    paths.add(takesDir.resolve(
+                                n + MetadataTemplate.selectSuffix(f)));
+                }
+
+                tags = template.renderTags(time);
+                encoders = new Encoder[paths.size()];
+                for(int i = 0; i < encoders.length; ++i) {
+                    encoders[i] = Encoder.PCM16(formats.get(i),
+                            paths.get(i), recorder.getSampleRate(), threads,
+                            settings.getEncoderHeadroom(),
+                            settings.getFsyncPolicy(), tags);
+                }
+                // even a single encoder is teed, so that the recording
+                // loop only hands chunks over and doesn't allocate
+                encoder = new TeeEncoder(encoders);
+                meter = new LoudnessMeter(recorder.getSampleRate(),
+                        recorder.getChannelCount());
+                peaks = new Peaks(recorder.getSampleRate(),
+                        recorder.getChannelCount());
+
+                // segments are cut where they are, not where it's quiet
+                if(segmentSamples == 0 && (template.getTrimSilence()
+                            || template.getSplitSilenceSeconds() > 0)) {
+                    silence = new SilenceDetector(recorder.getSampleRate(),
+                            recorder.getChannelCount());
+                    for(Encoder e : encoders) e.getStage().keepIndex();
+                } else {
+                    silence = null;
+                }
+
+                uploads = new StreamingUpload[paths.size()];
+                for(int i = 0; s3 != null && i < uploads.length; ++i) {
+                    String key = UploadService.keyFor(settings,
+                            template.renderDestination(
+                                destDir, paths.get(i), time, part));
+                    uploads[i] = new StreamingUpload(s3,
+                            settings.getBucketName(), key, paths.get(i));
+                    encoders[i].getStage().setUpload(uploads[i]);
+                }
+
+                journal = new SessionJournal(
+                        takesDir.resolve(n + ".session"), template,
+                        destDir, time, recorder.getSampleRate(),
+                        recorder.getChannelCount(), session, part, paths);
+                journal.update(encoders);
+            }
+
+            public Path getPath() { return paths.get(0); }
+        }
+
         @Override
         protected void onPreExecute() {
-            int sampleRate = 48000;
+            int rate = 48000;
 
-            int minBufSize = AudioRecord.getMinBufferSize(sampleRate,
+            int minBufSize = AudioRecord.getMinBufferSize(rate,
                     AudioFormat.CHANNEL_IN_STEREO,
                     AudioFormat.ENCODING_PCM_16BIT);
             Log.d(TAG, "recommended minimum buffer size: " + minBufSize);
 
-            int bufSize = Math.max(491520, minBufSize);
+            formats = template.getFormats();
+            if(template.getDeferEncoding()) {
+                formats = Arrays.asList(Format.WAV);
+            }
+
+            planner = new CapturePlanner(rate, 2, minBufSize,
+                    formats.size());
+            int bufSize = planner.getBufferBytes();
 
             while(true) {
                 recorder = new AudioRecord.Builder()
                     .setAudioFormat(new AudioFormat.Builder()
                             .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                            .setSampleRate(sampleRate)
+                            .setSampleRate(rate)
                             .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
                             .build())
                     .setBufferSizeInBytes(bufSize)
                     .build();
 
-                // ensure 1 seconds of audio fits in the buffer
-                if(recorder.getBufferSizeInFrames() >=
-                        recorder.getChannelCount() *
-                        recorder.getSampleRate()) {
+                // the device might not give us all we asked for
+                if(planner.fits(recorder.getBufferSizeInFrames())) {
                     break;
                 } else {
                     recorder.release();
@@ -361,105 +549,447 @@ public class RecordingService extends Service {
             Log.d(TAG, "configured channel count: " + recorder.getChannelCount());
             Log.d(TAG, "configured sample rate: " + recorder.getSampleRate());
             Log.d(TAG, "configured buffer size in frames: " + recorder.getBufferSizeInFrames());
+            planner.setBufferFrames(recorder.getBufferSizeInFrames());
+            sampleRate = recorder.getSampleRate();
+            channels = recorder.getChannelCount();
 
             time = OffsetDateTime.now();
+            fn = time.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+
+            // leave a core each for the capture and encoder threads
+            threads = Math.max(0,
+                    Runtime.getRuntime().availableProcessors() - 2);
+
+            segmentSamples = 60L * template.getSegmentMinutes()
+                * recorder.getSampleRate() * recorder.getChannelCount();
+            if(segmentSamples > 0) {
+                session = UUID.randomUUID().toString();
+            }
+
+            // raw captures are replaced once encoded, so not worth streaming
+            if(template.getStreamUpload() && !template.getDeferEncoding()) {
+                s3 = UploadService.newClient(settings);
+            }
 
-            String fn = time.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)
-                + template.getSuffix();
-            path = takesDir.resolve(fn);
             try {
                 Files.createDirectories(takesDir);
-
-                encoder = Encoder.PCM16(template.getFormat(),
-                        path, recorder.getSampleRate());
+                segment = new Segment(segmentSamples > 0 ? 1 : 0);
             } catch(IOException e) {
                 throw new RuntimeException("can't open output stream", e);
             }
 
+            finalizer = Executors.newSingleThreadExecutor();
+
             Started s = new Started(template, time);
             for(OnStateChangeListener l : stateListeners) {
                 l.recordingStarted(s);
             }
+
+            handler.postDelayed(display, DISPLAY_MILLIS);
+        }
+
+        private void display() {
+            Progress p = new Progress(template, time, sampleRate,
+                    shownSamples, shownClipped, channels,
+                    shownMax, (short)shownPeak.getAndSet(0));
+
+            String d = Utils.formatDuration(p.getSeconds());
+            if(notifier.due(NOTIFICATION_ID, d)) {
+                notifier.notify(NOTIFICATION_ID, d, buildNotification(d));
+            }
+
+            for(OnProgressListener l : progressListeners) {
+                l.recordingProgress(p);
+            }
+
+            handler.postDelayed(display, DISPLAY_MILLIS);
         }
 
         @Override
-        protected Sound doInBackground(Void... params) {
-            Log.i(TAG, "recording: " + path);
-            recorder.startRecording();
+        protected List<Sound> doInBackground(Void... params) {
+            Log.i(TAG, "recording: " + segment.paths);
 
             final int channels = recorder.getChannelCount();
             final int sampleRate = recorder.getSampleRate();
 
-            // TODO: make the chunk size configurable
-            short[] samples = new short[1024*channels];
-            short max = 0;
-            long samples_clipped = 0;
-            while(!stopping.get()) {
-                int r = recorder.read(samples, 0, samples.length,
-                        AudioRecord.READ_BLOCKING);
+            // the planner decides how much to read each time, the ring
+            // and the encoder's buffer fit the largest chunk it may choose
+            final int chunk = planner.getMaxChunkSamples();
+
+            final CaptureRing ring = new CaptureRing(128, 2*chunk);
+            Thread consumer = new Thread(new Runnable() {
+                public void run() {
+                    encode(ring, chunk, channels, sampleRate);
+                }
+            }, "AudioJournal-encoder");
+            consumer.start();
+
+            recorder.startRecording();
+
+            long last = System.nanoTime();
+            while(!stopping.get() && failure == null) {
+                ByteBuffer b = ring.acquire();
+                int bytes = planner.getChunkBytes();
+                long t = System.nanoTime();
+                int r = recorder.read(b, bytes, AudioRecord.READ_BLOCKING);
+                CAPTURE_READ.record(System.nanoTime() - t);
                 if(r < 0) {
+                    ring.close();
                     throw new RuntimeException("audio recording falied: " + r);
                 }
+                ring.publish(r);
 
-                long sum = 0;
-                short cur = 0;
-                for(int i = 0; i < r; ++i) {
-                    short n = (short)Math.abs(samples[i]);
-                    if(n == Short.MAX_VALUE) samples_clipped++;
-                    if(cur < n) cur = n;
-                }
-                if(max < cur) max = cur;
+                long now = System.nanoTime();
+                planner.read(now - last, r / (2*channels));
+                CHUNK_FRAMES.set(planner.getChunkFrames());
+                last = now;
+            }
+
+            Log.d(TAG, "releasing audio recorder");
+            recorder.stop();
+            recorder.release();
+            recorder = null;
 
+            ring.close();
+            while(true) {
                 try {
-                    encoder.update(samples);
-                } catch(IOException e) {
-                    throw new RuntimeException("unable to encode samples", e);
+                    consumer.join();
+                    break;
+                } catch(InterruptedException e) {
+                    continue;
                 }
+            }
 
-                Progress p = new Progress(template, time,
-                        sampleRate, encoder.getSamplesEncoded(),
-                        samples_clipped, channels,
-                        max, cur);
-                publishProgress(p);
+            Log.i(TAG, String.format(
+                "capture ring: capacity=%d high-water=%d overruns=%d",
+                ring.getCapacity(), ring.getHighWaterMark(),
+                ring.getOverruns()));
 
-                Log.d(TAG, String.format(
-                    "recording: samples captured=%d encoded=%d, cur=%d, max=%d",
-                    encoder.getSamplesCaptured(),
-                    encoder.getSamplesEncoded(), cur, max));
+            finalizer.shutdown();
+            while(true) {
+                try {
+                    finalizer.awaitTermination(1, TimeUnit.DAYS);
+                    break;
+                } catch(InterruptedException e) {
+                    continue;
+                }
+            }
+
+            if(failure != null) {
+                throw new RuntimeException("unable to encode samples", failure);
             }
 
             try {
-                encoder.finalize();
+                return finish(segment, ring, sampleRate, channels);
             } catch(IOException e) {
                 throw new RuntimeException("unable to finalize recording", e);
             }
+        }
 
-            Log.d(TAG, "releasing audio recorder");
-            recorder.stop();
-            recorder.release();
-            recorder = null;
+        private List<Sound> finish(Segment g, CaptureRing ring,
+                int sampleRate, int channels) throws IOException {
+            g.tags.setLoudness(g.meter.getLoudness());
+            g.encoder.finalize();
 
             float seconds = Utils.samplesAndSampleRateToSeconds(
-                    encoder.getSamplesEncoded(), sampleRate, channels);
+                    g.encoder.getSamplesEncoded(), sampleRate, channels);
             Log.i(TAG, String.format("finished recording (%.2fs): %s",
-                        seconds, path));
-            return template.renderLocalFile(destDir, path, time, seconds);
+                        seconds, g.paths));
+
+            SessionStats stats = new SessionStats();
+            stats.put("ring_capacity", ring.getCapacity());
+            stats.put("ring_high_water", ring.getHighWaterMark());
+            stats.put("ring_overruns", ring.getOverruns());
+            planner.collectStats(stats);
+            g.encoder.collectStats(stats);
+
+            List<long[]> ranges = null;
+            if(g.silence != null) {
+                ranges = g.silence.ranges(template.getTrimSilence(),
+                        template.getSplitSilenceSeconds());
+                long kept = 0;
+                for(long[] r : ranges) kept += r[1] - r[0];
+                stats.put("silences", g.silence.getSilences());
+                stats.put("silence_ranges", ranges.size());
+                stats.put("silence_cut_seconds",
+                        (double)(g.silence.getFrames() - kept) / sampleRate);
+
+                if(ranges.size() == 1 && ranges.get(0)[0] == 0
+                        && ranges.get(0)[1] >= g.silence.getFrames()) {
+                    ranges = null;
+                }
+            }
+            Path sp = g.getPath().resolveSibling(
+                    g.getPath().getFileName() + ".stats");
+            try {
+                stats.write(sp);
+                Log.d(TAG, "session stats written to: " + sp);
+            } catch(IOException e) {
+                Log.w(TAG, "unable to write session stats: " + sp, e);
+            }
+
+            List<Path> ok = new ArrayList<>();
+            final List<StreamingUpload> us = new ArrayList<>();
+            final List<ContentDigest> ds = new ArrayList<>();
+            for(int i = 0; i < g.paths.size(); ++i) {
+                if(g.encoder instanceof TeeEncoder
+                        && ((TeeEncoder)g.encoder).isFailed(i)) {
+                    Log.w(TAG, "skipping failed output: " + g.paths.get(i));
+                    if(g.uploads[i] != null) g.uploads[i].abort();
+                    continue;
+                }
+                ok.add(g.paths.get(i));
+                us.add(g.uploads[i]);
+                ds.add(g.encoders[i].getStage().getDigest());
+            }
+
+            final List<Sound> ss;
+            if(ranges != null) {
+                ss = cut(g, ok, us, ranges, sampleRate, channels);
+            } else {
+                ss = render(g, ok, settings.getKeepTakes(), seconds,
+                        session, g.part, g.peaks);
+                if(s3 != null) {
+                    uploads.execute(new Runnable() {
+                        public void run() { completeUploads(us, ds, ss); }
+                    });
+                }
+            }
+
+            try {
+                g.journal.delete();
+            } catch(IOException e) {
+                Log.w(TAG, "unable to remove session journal", e);
+            }
+
+            return ss;
         }
 
-        @Override
-        protected void onPostExecute(Sound s) {
-            stopped(template, s);
+        // renders the take's files, with their peaks, and queues them for
+        // encoding if that's deferred (in which case the source is kept for
+        // the encoder)
+        private List<Sound> render(Segment g, List<Path> ps, boolean keep,
+                float seconds, String session, int part, Peaks peaks) {
+            // the cut pieces weren't written by the encoders' stages
+            List<ContentDigest> ds = new ArrayList<>();
+            for(Path p : ps) {
+                int i = g.paths.indexOf(p);
+                ds.add(i >= 0 ? g.encoders[i].getStage().getDigest() : null);
+            }
+
+            long t = System.nanoTime();
+            List<Sound> ss = template.renderLocalFiles(destDir, ps, ds,
+                    keep || template.getDeferEncoding(), time, seconds,
+                    session, part, g.meter.getLoudness());
+            Log.i(TAG, String.format("rendered %d file(s): %.2fms",
+                        ps.size(), (System.nanoTime() - t) / 1e6));
+
+            for(Sound s : ss) {
+                try {
+                    peaks.write(s.getPeaks());
+                } catch(IOException e) {
+                    Log.w(TAG, "unable to write peaks: " + s.getPeaks(), e);
+                }
+            }
+
+            if(template.getDeferEncoding()) {
+                TranscodeService.enqueue(RecordingService.this,
+                        template, destDir, ps.get(0), ss.get(0));
+            }
+
+            return ss;
         }
 
-        @Override
-        protected void onProgressUpdate(Progress... values) {
-            Progress p = values[0];
+        // renders the ranges of the take worth keeping, as parts of a
+        // session if there are several, instead of the take itself
+        private List<Sound> cut(Segment g, List<Path> ok,
+                final List<StreamingUpload> us, List<long[]> ranges,
+                int sampleRate, int channels) throws IOException {
+            String sid = ranges.size() > 1 ? UUID.randomUUID().toString()
+                : session;
+
+            final List<Sound> ss = new ArrayList<>();
+            for(int k = 0; k < ranges.size(); ++k) {
+                long[] r = ranges.get(k);
+                int part = ranges.size() > 1 ? k + 1 : g.part;
+
+                List<Path> ps = new ArrayList<>();
+                long frames = 0;
+                for(Path p : ok) {
+                    String n = p.getFileName().toString();
+                    String suffix = n.substring(n.lastIndexOf('.'));
+                    Path dst = p.resolveSibling(String.format("%s-cut%03d%s",
+                                n.substring(0, n.length() - suffix.length()),
+                                k + 1, suffix));
+
+                    int i = g.paths.indexOf(p);
+                    frames = new TakeCutter(
+                            Format.guessBasedOnFilename(n), p,
+                            g.encoders[i].getStage().getIndex(),
+                            sampleRate, channels).cut(dst, r[0], r[1]);
+                    ps.add(dst);
+                }
 
-            nm.notify(NOTIFICATION_ID, buildNotification(p));
+                float seconds = Utils.samplesAndSampleRateToSeconds(
+                        frames * channels, sampleRate, channels);
+                Log.i(TAG, String.format("cut %.2fs at %.2fs: %s",
+                            seconds, (double)r[0] / sampleRate, ps));
+                ss.addAll(render(g, ps, false, seconds, sid, part,
+                            g.peaks.slice(r[0], r[1])));
+            }
 
-            for(OnProgressListener l : progressListeners) {
-                l.recordingProgress(p);
+            if(!settings.getKeepTakes()) {
+                for(Path p : ok) Files.delete(p);
+            }
+
+            // what was streamed is the uncut take
+            if(s3 != null) {
+                uploads.execute(new Runnable() {
+                    public void run() {
+                        for(StreamingUpload u : us) if(u != null) u.abort();
+                        for(Sound s : ss) {
+                            UploadService.upload(RecordingService.this, s);
+                        }
+                    }
+                });
             }
+
+            return ss;
+        }
+
+        // finishes the streamed uploads with the rendered files, falling
+        // back to uploading them in full
+        private void completeUploads(List<StreamingUpload> us,
+                List<ContentDigest> ds, List<Sound> ss) {
+            for(int i = 0; i < ss.size(); ++i) {
+                Sound s = ss.get(i);
+                boolean streamed = us.get(i).complete(s, ds.get(i));
+                UploadService.upload(RecordingService.this, s, streamed);
+            }
+        }
+
+        // hands the current segment over to the finalizer and continues
+        // the recording in the next one
+        private void roll(final CaptureRing ring,
+                final int sampleRate, final int channels) throws IOException {
+            final Segment g = segment;
+            samplesFinished += g.encoder.getSamplesCaptured();
+            segment = new Segment(g.part + 1);
+            Log.i(TAG, "rolling over to: " + segment.paths);
+
+            finalizer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        final List<Sound> ss =
+                            finish(g, ring, sampleRate, channels);
+                        handler.post(new Runnable() {
+                            public void run() { completed(template, ss); }
+                        });
+                    } catch(Exception e) {
+                        Log.e(TAG, "unable to finalize segment: "
+                                + g.paths, e);
+                    }
+                }
+            });
+        }
+
+        private void encode(CaptureRing ring, int chunk,
+                int channels, int sampleRate) {
+            short[] samples = new short[chunk];
+            short max = 0;
+            long samples_clipped = 0;
+            long journaled = 0;
+
+            int r;
+            while((r = ring.take(samples)) >= 0) {
+                if(failure != null) continue;
+
+                short cur = 0;
+                int clipped = 0;
+                for(int i = 0; i < r; ++i) {
+                    short n = (short)Math.abs(samples[i]);
+                    if(n == Short.MAX_VALUE) clipped++;
+                    if(cur < n) cur = n;
+                }
+                if(max < cur) max = cur;
+                if(clipped > 0) {
+                    samples_clipped += clipped;
+                    CLIPPED_SAMPLES.add(clipped);
+                }
+
+                long t = System.nanoTime();
+                try {
+                    // cut exactly at the segment boundary: the head of the
+                    // chunk ends the current segment, the tail starts the
+                    // next one
+                    long room = segmentSamples
+                        - segment.encoder.getSamplesCaptured();
+                    if(segmentSamples > 0 && r >= room) {
+                        int h = (int)room;
+                        segment.encoder.update(samples, h);
+                        segment.meter.update(samples, h);
+                        segment.peaks.update(samples, h);
+                        if(segment.silence != null) {
+                            segment.silence.update(samples, h);
+                        }
+                        roll(ring, sampleRate, channels);
+                        journaled = 0;
+
+                        System.arraycopy(samples, h, samples, 0, r - h);
+                        r -= h;
+                    }
+
+                    if(r > 0) {
+                        segment.encoder.update(samples, r);
+                        segment.meter.update(samples, r);
+                        segment.peaks.update(samples, r);
+                        if(segment.silence != null) {
+                            segment.silence.update(samples, r);
+                        }
+                    }
+                } catch(IOException e) {
+                    // keep draining so the capture thread never blocks
+                    failure = e;
+                    continue;
+                }
+                t = System.nanoTime() - t;
+                planner.encoded(t);
+                ENCODER_UPDATE.record(t);
+                RING_OCCUPANCY.set(ring.getOccupancy());
+
+                Encoder encoder = segment.encoder;
+                shownSamples = samplesFinished + encoder.getSamplesEncoded();
+                shownClipped = samples_clipped;
+                shownMax = max;
+                int pk = shownPeak.get();
+                while(cur > pk && !shownPeak.compareAndSet(pk, cur)) {
+                    pk = shownPeak.get();
+                }
+
+                long c = encoder.getSamplesCaptured();
+                if(c - journaled >= JOURNAL_SECONDS * sampleRate * channels) {
+                    try {
+                        segment.journal.update(segment.encoders);
+                    } catch(IOException e) {
+                        Log.w(TAG, "unable to update session journal", e);
+                    }
+                    journaled = c;
+                }
+
+                if(Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, String.format(
+                        "recording: samples captured=%d encoded=%d, cur=%d, max=%d, ring=%d",
+                        samplesFinished + encoder.getSamplesCaptured(),
+                        samplesFinished + encoder.getSamplesEncoded(), cur, max,
+                        ring.getOccupancy()));
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<Sound> ss) {
+            handler.removeCallbacks(display);
+            stopped(template, ss);
         }
     }
 }
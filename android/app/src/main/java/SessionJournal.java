@@ -0,0 +1,266 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+// Journal of a recording in progress, kept next to its takes: everything
+// needed to render the takes plus, for each of them, the last frame
+// boundary known to have reached the file. If the process dies while
+// recording, recover() cuts the takes at those boundaries (only looking at
+// what was written after them), repairs their headers and renders them.
+class SessionJournal {
+    private static final String SUFFIX = ".session";
+
+    private static final int[] MP3_BITRATES = {
+        0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320
+    };
+    private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+    static final int MP3_FRAME_SAMPLES = 1152;
+
+    private final Path path;
+    private final JSONObject j;
+    private final List<Path> outputs;
+
+    public SessionJournal(Path path, MetadataTemplate template, Path destDir,
+            OffsetDateTime time, int sampleRate, int channels,
+            String session, int part, List<Path> outputs) {
+        this.path = path;
+        this.outputs = outputs;
+
+        j = new JSONObject();
+        try {
+            j.put("template", template.toJSON());
+            j.put("dest_dir", destDir.toString());
+            j.put("time", time.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+            j.put("sample_rate", sampleRate);
+            j.put("channels", channels);
+            if(session != null) {
+                j.put("session", session);
+                j.put("part", part);
+            }
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+    }
+
+    public Path getPath() { return path; }
+
+    // records the durable marks of the encoders' output stages, the
+    // encoders in the same order as the outputs
+    public void update(Encoder[] es) throws IOException {
+        try {
+            JSONArray os = new JSONArray();
+            for(int i = 0; i < es.length; ++i) {
+                OutputStage.Mark m = es[i].getStage().getDurableMark();
+                JSONObject o = new JSONObject();
+                o.put("path", outputs.get(i).toString());
+                o.put("bytes", m != null ? m.bytes : 0);
+                o.put("samples", m != null ? m.samples : 0);
+                os.put(o);
+            }
+            j.put("outputs", os);
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, j.toString().getBytes("UTF-8"));
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    public static List<Path> list(Path takesDir) {
+        ArrayList<Path> ss = new ArrayList<>();
+        if(!Files.isDirectory(takesDir)) return ss;
+
+        try(DirectoryStream<Path> ds =
+                Files.newDirectoryStream(takesDir, "*" + SUFFIX)) {
+            for(Path p : ds) ss.add(p);
+        } catch(IOException e) {
+            throw new RuntimeException("unable to list: " + takesDir, e);
+        }
+        Collections.sort(ss);
+        return ss;
+    }
+
+    // repairs and renders the takes of an interrupted recording; safe to
+    // run again should it be interrupted itself
+    public static List<Sound> recover(Context ctx, Path session)
+            throws IOException, JSONException {
+        JSONObject j = new JSONObject(
+                new String(Files.readAllBytes(session), "UTF-8"));
+
+        MetadataTemplate t = MetadataTemplate.fromJSON(
+                j.getString("template"));
+        Path destDir = Paths.get(j.getString("dest_dir"));
+        OffsetDateTime time = OffsetDateTime.parse(j.getString("time"));
+        int sampleRate = j.getInt("sample_rate");
+        int channels = j.getInt("channels");
+        String sessionId = j.optString("session", null);
+        int part = j.optInt("part", 0);
+
+        List<Path> ok = new ArrayList<>();
+        long samples = -1;
+        JSONArray os = j.optJSONArray("outputs");
+        for(int i = 0; os != null && i < os.length(); ++i) {
+            JSONObject o = os.getJSONObject(i);
+            Path p = Paths.get(o.getString("path"));
+
+            // a previous attempt might have died while rendering
+            TakePlacer.reclaim(p, t.renderDestination(destDir, p, time, part));
+            if(!Files.exists(p)) continue;
+
+            long s = repair(p, o.getLong("bytes"), o.getLong("samples"),
+                    sampleRate, channels);
+            if(s <= 0) {
+                Log.w(TAG, "nothing to recover, removing: " + p);
+                Files.delete(p);
+                continue;
+            }
+
+            Log.i(TAG, String.format("recovered %d samples: %s", s, p));
+            ok.add(p);
+            if(samples < 0) samples = s;
+        }
+
+        List<Sound> ss = new ArrayList<>();
+        if(!ok.isEmpty()) {
+            float seconds = Utils.samplesAndSampleRateToSeconds(
+                    samples, sampleRate, channels);
+            ss = t.renderLocalFiles(destDir, ok, null,
+                    new Settings(ctx).getKeepTakes() || t.getDeferEncoding(),
+                    time, seconds, sessionId, part, null);
+
+            if(t.getDeferEncoding()) {
+                TranscodeService.enqueue(ctx, t, destDir, ok.get(0),
+                        ss.get(0));
+            } else if(t.getAutoUpload() || t.getStreamUpload()) {
+                for(Sound s : ss) UploadService.upload(ctx, s);
+            }
+        }
+
+        Files.delete(session);
+        return ss;
+    }
+
+    // cuts the file at the last complete frame at or after the journaled
+    // mark, fixes up its header and returns the number of samples kept
+    private static long repair(Path p, long bytes, long samples,
+            int sampleRate, int channels) throws IOException {
+        Format f = Format.guessBasedOnFilename(p.toString());
+        try(FileChannel ch = FileChannel.open(p,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if(f == Format.WAV) {
+                if(bytes < WAVFile.HEADER_BYTES) return 0;
+                ch.truncate(bytes);
+                write(ch, WAVFile.header(sampleRate, channels,
+                            bytes - WAVFile.HEADER_BYTES), 0);
+                return samples;
+            } else if(f == Format.FLAC) {
+                if(samples == 0) return 0;
+                ch.truncate(bytes);
+                patchStreamInfo(ch, samples / channels);
+                return samples;
+            } else if(f == Format.MP3) {
+                // nothing marked yet: the frames start after the ID3v2 tag
+                long pos = bytes > 0 ? bytes : TakeCutter.id3Bytes(ch);
+                ByteBuffer h = ByteBuffer.allocate(4);
+                while(true) {
+                    h.clear();
+                    if(ch.read(h, pos) < 4) break;
+                    int l = mp3FrameLength(h.array(), 0);
+                    if(l <= 0 || pos + l > ch.size()) break;
+                    pos += l;
+                    samples += MP3_FRAME_SAMPLES * channels;
+                }
+                ch.truncate(pos);
+                return samples;
+            } else {
+                throw new IllegalArgumentException("unsupported format");
+            }
+        }
+    }
+
+    // total samples (per channel) in STREAMINFO, leaving the frame sizes
+    // and MD5 as unknown
+    static void patchStreamInfo(FileChannel ch, long samples)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(42);
+        while(b.hasRemaining()) {
+            if(ch.read(b, b.position()) < 0) {
+                throw new IOException("truncated FLAC header");
+            }
+        }
+        if(!new String(b.array(), 0, 4, StandardCharsets.US_ASCII)
+                .equals("fLaC")) {
+            throw new IOException("not a FLAC file");
+        }
+
+        for(int i = 12; i < 18; ++i) b.put(i, (byte)0);
+        long l = b.getLong(18);
+        l = (l & ~0xfffffffffL) | (samples & 0xfffffffffL);
+        b.putLong(18, l);
+        for(int i = 26; i < 42; ++i) b.put(i, (byte)0);
+
+        b.clear();
+        write(ch, b, 0);
+    }
+
+    // length of the MPEG-1 layer III frame with the header at off, or 0 if
+    // it isn't one
+    static int mp3FrameLength(byte[] bs, int off) {
+        int b0 = bs[off] & 0xff, b1 = bs[off + 1] & 0xff;
+        int b2 = bs[off + 2] & 0xff;
+        if(b0 != 0xff || (b1 & 0xfe) != 0xfa) return 0;
+
+        int br = b2 >> 4, sr = (b2 >> 2) & 3, pad = (b2 >> 1) & 1;
+        if(br == 0 || br >= MP3_BITRATES.length || sr >= 3) return 0;
+
+        return 144000 * MP3_BITRATES[br] / MP3_SAMPLE_RATES[sr] + pad;
+    }
+
+    // the number of whole frames in the first n bytes
+    static int mp3Frames(byte[] bs, int n) {
+        int frames = 0, off = 0;
+        while(off + 4 <= n) {
+            int l = mp3FrameLength(bs, off);
+            if(l <= 0 || off + l > n) break;
+            off += l;
+            frames += 1;
+        }
+        return frames;
+    }
+
+    private static void write(FileChannel ch, ByteBuffer b, long pos)
+            throws IOException {
+        while(b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+    }
+}
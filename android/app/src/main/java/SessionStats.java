@@ -0,0 +1,46 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+// What a recording session actually did (encoder settings used, buffer
+// sizes, ...), written next to the take for later inspection
+class SessionStats {
+    private JSONObject j = new JSONObject();
+
+    public void put(String key, Object value) {
+        try {
+            j.put(key, value);
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+    }
+
+    public void put(String key, long value) {
+        try {
+            j.put(key, value);
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+    }
+
+    public void put(String key, double value) {
+        try {
+            j.put(key, value);
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+    }
+
+    public String toJSON() {
+        return j.toString();
+    }
+
+    public void write(Path p) throws IOException {
+        Files.write(p, toJSON().getBytes("UTF-8"));
+    }
+}
@@ -45,6 +45,26 @@ class Settings {
         return cache;
     }
 
+    public Path getTranscodeQueueDir() {
+        Path q = ctx.getFilesDir().toPath().resolve("transcode");
+        try {
+            Files.createDirectories(q);
+        } catch(IOException e) {
+            throw new RuntimeException("unable to create transcode queue", e);
+        }
+        return q;
+    }
+
+    // the index of the local sounds
+    public Path getCatalogFile() {
+        return ctx.getFilesDir().toPath().resolve("catalog");
+    }
+
+    // where the process' metrics are dumped
+    public Path getMetricsFile() {
+        return ctx.getFilesDir().toPath().resolve("metrics.json");
+    }
+
     private SharedPreferences getPreferences() {
         return ctx.getSharedPreferences("preferences", Context.MODE_PRIVATE);
     }
@@ -57,6 +77,45 @@ class Settings {
         return "eu-central-1";
     }
 
+    // an S3 compatible service to use instead of AWS (e.g. for testing),
+    // null for AWS
+    public String getS3Endpoint() {
+        return getPreferences().getString("s3_endpoint", null);
+    }
+
+    // fraction of real-time the encoder should leave unused
+    public float getEncoderHeadroom() {
+        return getPreferences().getFloat("encoder_headroom", 0.3f);
+    }
+
+    // when to sync recordings to storage: "stop", "seconds:N" or "mb:N"
+    public OutputStage.FsyncPolicy getFsyncPolicy() {
+        return OutputStage.FsyncPolicy.fromString(
+                getPreferences().getString("fsync_policy", "seconds:5"));
+    }
+
+    // whether takes are kept once rendered (hard linked where possible, so
+    // it's nearly free), otherwise they're moved
+    public boolean getKeepTakes() {
+        return getPreferences().getBoolean("keep_takes", true);
+    }
+
+    // when the bucket was last synced sound by sound rather than by its
+    // manifests (ms since the epoch)
+    public long getLastFullSync() {
+        return getPreferences().getLong("last_full_sync", 0);
+    }
+
+    public void setLastFullSync(long t) {
+        getPreferences().edit().putLong("last_full_sync", t).apply();
+    }
+
+    // how often the bucket's synced in full, to pick up what's missing from
+    // its manifests
+    public long getFullSyncMillis() {
+        return getPreferences().getLong("full_sync_millis", 24*60*60*1000L);
+    }
+
     public MetadataTemplate[] loadTemplates() {
         Set<String> ss = getPreferences()
             .getStringSet("templates", new HashSet<String>());
@@ -0,0 +1,67 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import android.util.Log;
+
+// Parses metadata sidecars on a pool of threads as they're submitted (e.g.
+// while walking a directory), each read in one go, and hands the sounds to
+// the listener in batches (see BatchingExecutor). A sidecar that can't be
+// read or parsed is reported on its own and doesn't stop the others.
+//
+// The listener is called by one thread at a time, but not necessarily the
+// submitting one.
+class SidecarScanner {
+    public interface Listener {
+        void parsed(List<Sound> ss);
+        void failed(Path m, Exception e);
+    }
+
+    private final Listener listener;
+    private final BatchingExecutor<Sound> ex;
+
+    // guarded by ex
+    private int failures = 0;
+
+    public SidecarScanner(final Listener listener) {
+        this.listener = listener;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ex = new BatchingExecutor<>(threads,
+                new BatchingExecutor.Sink<Sound>() {
+                    public void flush(List<Sound> b) { listener.parsed(b); }
+                });
+    }
+
+    public void submit(final Path m) {
+        ex.execute(new Runnable() {
+            public void run() { parse(m); }
+        });
+    }
+
+    private void parse(Path m) {
+        Sound s;
+        try {
+            s = Sound.fromLocalFile(m);
+        } catch(Exception e) {
+            Log.w(TAG, "unable to read metadata: " + m, e);
+            synchronized(ex) {
+                failures += 1;
+                listener.failed(m, e);
+            }
+            return;
+        }
+
+        ex.add(s);
+    }
+
+    // waits for everything submitted, returns the number of failures
+    public int finish() {
+        ex.finish();
+        synchronized(ex) {
+            return failures;
+        }
+    }
+}
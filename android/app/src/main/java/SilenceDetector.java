@@ -0,0 +1,128 @@
+package io.rootmos.audiojournal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds the silent stretches of interleaved 16-bit PCM as it's recorded.
+//
+// The samples are looked at in windows of WINDOW_FRAMES, the FLAC block
+// size, so that window boundaries are frame boundaries of the encoded
+// FLAC. A window is silent when its energy, over all channels, is below
+// THRESHOLD_DBFS, and runs of at least MIN_SILENCE_SECONDS of silent
+// windows are kept as silences. Memory only grows with the number of
+// silences.
+//
+// From those, ranges() works out what to keep: the silence at the start
+// and end is trimmed and the take is split at the silences long enough,
+// in each case leaving PAD_SECONDS of the silence so the cuts aren't
+// abrupt. A take that's silent throughout is left as it is.
+class SilenceDetector {
+    public static final int WINDOW_FRAMES = 4096;
+
+    private static final double THRESHOLD_DBFS = -55;
+    private static final double MIN_SILENCE_SECONDS = 1;
+    private static final double PAD_SECONDS = 0.5;
+
+    private final int sampleRate;
+    private final int channels;
+    private final double threshold;
+    private final long minSilenceWindows;
+
+    private double energy = 0;
+    private int filled = 0;
+    private long windows = 0;
+    private long frames = 0;
+
+    // silences as [start, end) in windows
+    private long silenceStart = -1;
+    private final List<long[]> silences = new ArrayList<>();
+
+    public SilenceDetector(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+
+        // mean square of a full scale sample is 1
+        this.threshold = Math.pow(10, THRESHOLD_DBFS / 10)
+            * 32768.0 * 32768.0 * WINDOW_FRAMES * channels;
+        this.minSilenceWindows = (long)Math.ceil(
+                MIN_SILENCE_SECONDS * sampleRate / WINDOW_FRAMES);
+    }
+
+    public void update(short[] samples, int length) {
+        int windowSamples = WINDOW_FRAMES * channels;
+        for(int i = 0; i < length; ++i) {
+            double s = samples[i];
+            energy += s * s;
+            if(++filled == windowSamples) {
+                window(energy < threshold);
+                energy = 0;
+                filled = 0;
+            }
+        }
+        frames += length / channels;
+    }
+
+    private void window(boolean silent) {
+        if(silent) {
+            if(silenceStart < 0) silenceStart = windows;
+        } else if(silenceStart >= 0) {
+            closeSilence(windows);
+        }
+        windows += 1;
+    }
+
+    private void closeSilence(long end) {
+        if(end - silenceStart >= minSilenceWindows) {
+            silences.add(new long[] { silenceStart, end });
+        }
+        silenceStart = -1;
+    }
+
+    public long getFrames() { return frames; }
+    public int getSilences() { return silences.size(); }
+
+    // the [start, end) frames worth keeping, a single range covering the
+    // whole take if nothing is to be cut
+    public List<long[]> ranges(boolean trim, int splitSeconds) {
+        // a silence running into the end, which might be a partial window
+        List<long[]> ss = new ArrayList<>(silences);
+        if(silenceStart >= 0 && windows - silenceStart >= minSilenceWindows) {
+            ss.add(new long[] { silenceStart, Long.MAX_VALUE });
+        }
+
+        long pad = (long)(PAD_SECONDS * sampleRate);
+        long split = splitSeconds > 0 ? (long)splitSeconds * sampleRate : 0;
+
+        List<long[]> rs = new ArrayList<>();
+        long start = 0;
+        for(long[] s : ss) {
+            long from = s[0] * WINDOW_FRAMES;
+            long to = Math.min(frames, s[1] == Long.MAX_VALUE ? frames
+                    : s[1] * WINDOW_FRAMES);
+
+            boolean leading = from == 0, trailing = to == frames;
+            if(leading && trailing) {
+                // nothing but silence
+                rs.clear();
+                rs.add(new long[] { 0, frames });
+                return rs;
+            } else if(leading) {
+                if(trim) start = align(Math.max(0, to - pad));
+            } else if(trailing) {
+                if(trim) {
+                    rs.add(new long[] { start, align(from + pad) });
+                    return rs;
+                }
+            } else if(split > 0 && to - from >= split) {
+                rs.add(new long[] { start, align(from + pad) });
+                start = align(to - pad);
+            }
+        }
+        rs.add(new long[] { start, frames });
+        return rs;
+    }
+
+    private static long align(long frame) {
+        return frame / WINDOW_FRAMES * WINDOW_FRAMES;
+    }
+}
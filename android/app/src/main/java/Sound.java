@@ -8,21 +8,20 @@ import android.content.Intent;
 import android.content.Context;
 import androidx.core.content.FileProvider;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -42,7 +41,15 @@ class Sound implements Comparable<Sound> {
     private String filename = null;
     private String mimeType = null;
 
+    // parts of a segmented recording share a session
+    private String session = null;
+    private int part = 0;
+
+    // measured while recording, null if unknown
+    private Loudness loudness = null;
+
     private Uri uri = null;
+    private Uri peaksURI = null;
     private Path local = null;
     private Path metadata = null;
 
@@ -65,8 +72,14 @@ class Sound implements Comparable<Sound> {
 
     public void setLocal(Path  path) { this.local = path; }
     public void setURI(Uri uri) { this.uri = uri; }
+    public void setPeaksURI(Uri uri) { this.peaksURI = uri; }
     public void setMetadata(Path metadata) { this.metadata = metadata; }
     public void setMimeType(String mimeType) { this.mimeType = mimeType; }
+    public void setLoudness(Loudness loudness) { this.loudness = loudness; }
+    public void setSession(String session, int part) {
+        this.session = session;
+        this.part = part;
+    }
 
     public String getTitle() { return title; }
     public String getArtist() { return artist; }
@@ -76,9 +89,22 @@ class Sound implements Comparable<Sound> {
     public LocalDate getDate() { return date; }
     public byte[] getSHA1() { return sha1; }
     public Uri getURI() { return uri; }
+    public Uri getPeaksURI() { return peaksURI; }
     public Path getLocal() { return local; }
     public String getFilename() { return filename; }
+    public String getMimeType() { return mimeType; }
     public Path getMetadata() { return metadata; }
+    public String getSession() { return session; }
+    public int getPart() { return part; }
+    public Loudness getLoudness() { return loudness; }
+
+    // the waveform's peaks are kept next to the metadata
+    public Path getPeaks() {
+        if(metadata == null) return null;
+        String n = metadata.getFileName().toString()
+            .replaceAll("\\.json$", "") + ".peaks";
+        return metadata.resolveSibling(n);
+    }
 
     public int hashCode() {
         return ByteBuffer.wrap(sha1).getInt();
@@ -108,33 +134,14 @@ class Sound implements Comparable<Sound> {
         if(o.filename != null) filename = o.filename;
         if(o.local != null) local = o.local;
         if(o.uri != null) uri = o.uri;
+        if(o.peaksURI != null) peaksURI = o.peaksURI;
         if(o.metadata != null) metadata = o.metadata;
     }
 
-    static public List<Sound> scanDir(Path d) {
-        final ArrayList<Sound> ss = new ArrayList<>();
-        try {
-            Files.walkFileTree(d, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path p,
-                        BasicFileAttributes attrs) throws IOException {
-                    Log.d(TAG, "considering: " + p);
-                    if(p.toFile().getName().endsWith(".json")) {
-                        ss.add(fromLocalFile(p));
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch(IOException e) {
-            Log.e(TAG, "exception while scanning: " + d, e);
-            return null;
-        }
-        return ss;
-    }
-
-    static public Sound fromLocalFile(Path m) throws FileNotFoundException {
+    static public Sound fromLocalFile(Path m) throws IOException {
         Log.d(TAG, "reading local metadata: " + m);
-        Sound s = fromInputStream(new FileInputStream(m.toFile()));
+        Sound s = fromJSON(new String(Files.readAllBytes(m),
+                    StandardCharsets.UTF_8));
         s.metadata = m;
         Path p = m.getParent().resolve(s.filename);
         if(Files.exists(p)) {
@@ -180,6 +187,9 @@ class Sound implements Comparable<Sound> {
                 String u = j.getString("url");
                 s.uri = Uri.parse(u);
             }
+            if(j.has("peaks_url")) {
+                s.peaksURI = Uri.parse(j.getString("peaks_url"));
+            }
             s.filename = j.getString("filename");
 
             s.mimeType = j.optString("mimetype");
@@ -187,6 +197,15 @@ class Sound implements Comparable<Sound> {
                 s.mimeType = Format.guessBasedOnFilename(s.filename)
                     .getMimeType();
             }
+
+            if(j.has("session")) {
+                s.session = j.getString("session");
+                s.part = j.getInt("part");
+            }
+
+            if(j.has("loudness")) {
+                s.loudness = Loudness.fromJSON(j.getJSONObject("loudness"));
+            }
         } catch(DecoderException e) {
             throw new RuntimeException("unable to hex decode", e);
         } catch(JSONException e) {
@@ -214,6 +233,9 @@ class Sound implements Comparable<Sound> {
             j.put("title", title);
             j.put("sha1", Hex.encodeHexString(sha1));
             j.put("url", uri != null ? uri.toString() : JSONObject.NULL);
+            if(peaksURI != null) {
+                j.put("peaks_url", peaksURI.toString());
+            }
             if(local != null) {
                 j.put("filename", local.getFileName());
             } else if(filename != null) {
@@ -230,12 +252,108 @@ class Sound implements Comparable<Sound> {
             j.put("year", date.getYear());
             j.put("length", duration);
             j.put("mimetype", mimeType);
+            if(session != null) {
+                j.put("session", session);
+                j.put("part", part);
+            }
+            if(loudness != null) {
+                j.put("loudness", loudness.toJSON());
+            }
         } catch(JSONException e) {
             throw new RuntimeException("unable to populate JSON object", e);
         }
         return j.toString();
     }
 
+    // the fields of the sidecar, as kept in the Catalog
+    private static final int HAS_DATETIME = 1;
+    private static final int HAS_LOUDNESS = 2;
+
+    // flags (varint), SHA-1 (20 bytes), title, artist, composer, duration
+    // (float), filename, MIME type, session, part (varint), URI, peaks URI,
+    // the time (seconds, nanoseconds and offset, signed varints) or else the
+    // date (epoch day, signed varint), and the loudness if known
+    void writeTo(SoundRecords.Writer w) throws IOException {
+        DataOutputStream o = w.getStream();
+        int flags = 0;
+        if(datetime != null) flags |= HAS_DATETIME;
+        if(loudness != null) flags |= HAS_LOUDNESS;
+        w.writeVarLong(flags);
+
+        o.write(sha1);
+        w.writeString(title);
+        w.writeString(artist);
+        w.writeString(composer);
+        o.writeFloat(duration);
+        w.writeString(filename);
+        w.writeString(mimeType);
+        w.writeString(session);
+        w.writeVarLong(part);
+        w.writeString(uri != null ? uri.toString() : null);
+        w.writeString(peaksURI != null ? peaksURI.toString() : null);
+
+        if(datetime != null) {
+            w.writeSignedVarLong(datetime.toEpochSecond());
+            w.writeVarLong(datetime.getNano());
+            w.writeSignedVarLong(datetime.getOffset().getTotalSeconds());
+        } else {
+            w.writeSignedVarLong(date.toEpochDay());
+        }
+
+        if(loudness != null) {
+            o.writeDouble(loudness.getIntegrated());
+            o.writeDouble(loudness.getRange());
+            o.writeDouble(loudness.getPeak());
+            o.writeDouble(loudness.getTruePeak());
+            double[] rms = loudness.getRMS();
+            w.writeVarLong(rms.length);
+            for(double r : rms) o.writeDouble(r);
+        }
+    }
+
+    static Sound readFrom(SoundRecords.Reader r) throws IOException {
+        DataInputStream i = r.getStream();
+        long flags = r.readVarLong();
+
+        byte[] sha1 = new byte[20];
+        i.readFully(sha1);
+        String t = r.readString();
+        String a = r.readString();
+        String c = r.readString();
+        Sound s = new Sound(t, a, c, sha1, i.readFloat());
+
+        s.filename = r.readString();
+        s.mimeType = r.readString();
+        s.session = r.readString();
+        s.part = (int)r.readVarLong();
+        String u = r.readString();
+        if(u != null) s.uri = Uri.parse(u);
+        u = r.readString();
+        if(u != null) s.peaksURI = Uri.parse(u);
+
+        if((flags & HAS_DATETIME) != 0) {
+            long secs = r.readSignedVarLong();
+            int nanos = (int)r.readVarLong();
+            ZoneOffset offset = ZoneOffset.ofTotalSeconds(
+                    (int)r.readSignedVarLong());
+            s.setDateTime(OffsetDateTime.ofInstant(
+                        Instant.ofEpochSecond(secs, nanos), offset));
+        } else {
+            s.date = LocalDate.ofEpochDay(r.readSignedVarLong());
+        }
+
+        if((flags & HAS_LOUDNESS) != 0) {
+            double integrated = i.readDouble();
+            double range = i.readDouble();
+            double peak = i.readDouble();
+            double truePeak = i.readDouble();
+            double[] rms = new double[(int)r.readVarLong()];
+            for(int k = 0; k < rms.length; ++k) rms[k] = i.readDouble();
+            s.loudness = new Loudness(integrated, range, peak, truePeak, rms);
+        }
+        return s;
+    }
+
     public Intent getShareIntent(Context ctx) {
         Intent i = new Intent(Intent.ACTION_VIEW);
 
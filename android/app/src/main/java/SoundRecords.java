@@ -0,0 +1,140 @@
+package io.rootmos.audiojournal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of Sound records, for where many of them are
+// read at once (the Catalog, the bucket's manifests) and parsing their
+// JSON would dominate. It's not a replacement for the sidecars, which stay
+// JSON for the Linux tooling.
+//
+// Strings are interned per stream: the first occurrence is written out and
+// later ones refer back to it, so artists, composers, MIME types and
+// recurring titles cost a byte or two. Integers are varints, the SHA-1 its
+// raw 20 bytes and times are seconds since the epoch, nanoseconds and the
+// UTC offset in seconds (see Sound.writeTo for a record's layout).
+//
+// A list (writeList/readList) is "AJSR", version (short), the number of
+// records (varint) and the records.
+class SoundRecords {
+    private static final int MAGIC = 0x414a5352;
+    public static final short VERSION = 1;
+
+    public static class Writer {
+        private final DataOutputStream o;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        public Writer(DataOutputStream o) { this.o = o; }
+
+        public DataOutputStream getStream() { return o; }
+
+        public void write(Sound s) throws IOException { s.writeTo(this); }
+
+        // 0 for null, 1 followed by a new string, or 2 + its index
+        public void writeString(String s) throws IOException {
+            if(s == null) {
+                writeVarLong(0);
+                return;
+            }
+
+            Integer i = strings.get(s);
+            if(i != null) {
+                writeVarLong(2 + i);
+            } else {
+                writeVarLong(1);
+                o.writeUTF(s);
+                strings.put(s, strings.size());
+            }
+        }
+
+        public void writeVarLong(long v) throws IOException {
+            while((v & ~0x7fL) != 0) {
+                o.writeByte((int)((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            o.writeByte((int)v);
+        }
+
+        public void writeSignedVarLong(long v) throws IOException {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+    }
+
+    public static class Reader {
+        private final DataInputStream i;
+        private final List<String> strings = new ArrayList<>();
+
+        public Reader(DataInputStream i) { this.i = i; }
+
+        public DataInputStream getStream() { return i; }
+
+        public Sound read() throws IOException { return Sound.readFrom(this); }
+
+        public String readString() throws IOException {
+            long r = readVarLong();
+            if(r == 0) return null;
+            if(r == 1) {
+                String s = i.readUTF();
+                strings.add(s);
+                return s;
+            }
+            if(r - 2 >= strings.size()) {
+                throw new IOException("invalid string reference: " + r);
+            }
+            return strings.get((int)(r - 2));
+        }
+
+        public long readVarLong() throws IOException {
+            long v = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = i.readUnsignedByte();
+                v |= (long)(b & 0x7f) << shift;
+                if((b & 0x80) == 0) return v;
+            }
+            throw new IOException("malformed varint");
+        }
+
+        public long readSignedVarLong() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    public static void writeList(OutputStream os, List<Sound> ss)
+            throws IOException {
+        DataOutputStream o = new DataOutputStream(
+                new BufferedOutputStream(os));
+        o.writeInt(MAGIC);
+        o.writeShort(VERSION);
+        Writer w = new Writer(o);
+        w.writeVarLong(ss.size());
+        for(Sound s : ss) w.write(s);
+        o.flush();
+    }
+
+    public static List<Sound> readList(InputStream is) throws IOException {
+        DataInputStream i = new DataInputStream(new BufferedInputStream(is));
+        if(i.readInt() != MAGIC) {
+            throw new IOException("not a list of sound records");
+        }
+        short v = i.readShort();
+        if(v != VERSION) {
+            throw new IOException("unsupported sound records version: " + v);
+        }
+
+        Reader r = new Reader(i);
+        long n = r.readVarLong();
+        List<Sound> ss = new ArrayList<>((int)Math.min(n, 1 << 16));
+        for(long k = 0; k < n; ++k) ss.add(r.read());
+        return ss;
+    }
+}
@@ -0,0 +1,225 @@
+package io.rootmos.audiojournal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Tags the encoders write when they open a stream, rendered from the
+// template when the recording starts, in RESERVED_BYTES set aside for them:
+// a VORBIS_COMMENT block followed by PADDING in FLAC, a padded ID3v2.4 tag
+// in front of MP3. What's only known when the recording stops (ReplayGain)
+// is then written into the same room in place in FLAC, whose header is
+// patched anyway, and appended to MP3 as an APEv2 tag (as mp3gain does), so
+// that the bytes already digested and uploaded are left alone. Either way
+// the file never has to be rewritten by a tagging library.
+class StreamTags {
+    public static final int RESERVED_BYTES = 4096;
+
+    private static final String VENDOR = "audio-journal";
+
+    private final String title;
+    private final String artist;
+    private final String composer;
+    private final String year;
+    private volatile Loudness loudness = null;
+
+    public StreamTags(String title, String artist, String composer,
+            String year) {
+        this.title = title;
+        this.artist = artist;
+        this.composer = composer;
+        this.year = year;
+    }
+
+    public void setLoudness(Loudness loudness) { this.loudness = loudness; }
+
+    // whether there's more to the tags than when the stream was opened
+    public boolean isChanged() { return loudness != null; }
+
+    // as Vorbis comment names, the ID3v2 frames are mapped from those
+    private List<String[]> fields() {
+        List<String[]> fs = new ArrayList<>();
+        if(title != null) fs.add(new String[] { "TITLE", title });
+        if(artist != null) fs.add(new String[] { "ARTIST", artist });
+        if(composer != null) fs.add(new String[] { "COMPOSER", composer });
+        if(year != null) fs.add(new String[] { "DATE", year });
+
+        Loudness l = loudness;
+        if(l != null && l.hasGain()) {
+            fs.add(new String[] { "REPLAYGAIN_TRACK_GAIN", l.getGainTag() });
+            fs.add(new String[] { "REPLAYGAIN_TRACK_PEAK", l.getPeakTag() });
+        }
+        return fs;
+    }
+
+    // VORBIS_COMMENT and a last PADDING block, RESERVED_BYTES in all
+    public ByteBuffer renderFLAC() throws IOException {
+        ByteArrayOutputStream c = new ByteArrayOutputStream();
+        writeVorbisString(c, VENDOR);
+        List<String[]> fs = fields();
+        c.write(le32(fs.size()), 0, 4);
+        for(String[] f : fs) writeVorbisString(c, f[0] + "=" + f[1]);
+
+        int padding = RESERVED_BYTES - 4 - c.size() - 4;
+        if(padding < 0) throw new IOException("tags don't fit");
+
+        ByteBuffer b = ByteBuffer.allocate(RESERVED_BYTES);
+        b.putInt((4 << 24) | c.size());
+        b.put(c.toByteArray());
+        b.putInt(0x80000000 | (1 << 24) | padding);
+        b.clear();
+        return b;
+    }
+
+    // an ID3v2.4 tag padded to RESERVED_BYTES
+    public ByteBuffer renderID3v2() throws IOException {
+        ByteArrayOutputStream fs = new ByteArrayOutputStream();
+        for(String[] f : fields()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(3); // UTF-8
+            String id;
+            if(f[0].equals("TITLE")) id = "TIT2";
+            else if(f[0].equals("ARTIST")) id = "TPE1";
+            else if(f[0].equals("COMPOSER")) id = "TCOM";
+            else if(f[0].equals("DATE")) id = "TDRC";
+            else {
+                id = "TXXX";
+                writeUTF8(body, f[0]);
+                body.write(0);
+            }
+            writeUTF8(body, f[1]);
+
+            writeASCII(fs, id);
+            fs.write(syncsafe(body.size()), 0, 4);
+            fs.write(0);
+            fs.write(0);
+            body.writeTo(fs);
+        }
+
+        if(10 + fs.size() > RESERVED_BYTES) {
+            throw new IOException("tags don't fit");
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(RESERVED_BYTES);
+        b.put("ID3".getBytes(StandardCharsets.US_ASCII));
+        b.put((byte)4).put((byte)0).put((byte)0);
+        b.put(syncsafe(RESERVED_BYTES - 10));
+        b.put(fs.toByteArray());
+        b.clear();
+        return b;
+    }
+
+    // an APEv2 tag (header, items and footer) with the ReplayGain, null if
+    // there's none
+    public ByteBuffer renderAPEv2() {
+        Loudness l = loudness;
+        if(l == null || !l.hasGain()) return null;
+
+        ByteArrayOutputStream is = new ByteArrayOutputStream();
+        String[][] fs = {
+            { "REPLAYGAIN_TRACK_GAIN", l.getGainTag() },
+            { "REPLAYGAIN_TRACK_PEAK", l.getPeakTag() },
+        };
+        for(String[] f : fs) {
+            byte[] v = f[1].getBytes(StandardCharsets.UTF_8);
+            is.write(le32(v.length), 0, 4);
+            is.write(le32(0), 0, 4); // UTF-8 text
+            writeASCII(is, f[0]);
+            is.write(0);
+            is.write(v, 0, v.length);
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(32 + is.size() + 32)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        apeHeader(b, is.size() + 32, fs.length, 0xa0000000);
+        b.put(is.toByteArray());
+        apeHeader(b, is.size() + 32, fs.length, 0x80000000);
+        b.clear();
+        return b;
+    }
+
+    private static void apeHeader(ByteBuffer b, int size, int items,
+            int flags) {
+        b.put("APETAGEX".getBytes(StandardCharsets.US_ASCII));
+        b.putInt(2000).putInt(size).putInt(items).putInt(flags);
+        b.putLong(0);
+    }
+
+    // bytes of the APEv2 tag at the end of the file, if any
+    public static long apeBytes(FileChannel ch) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        if(ch.size() < 32 || !read(ch, b, ch.size() - 32)) return 0;
+        if(!new String(b.array(), 0, 8, StandardCharsets.US_ASCII)
+                .equals("APETAGEX")) {
+            return 0;
+        }
+        long size = b.getInt(12) & 0xffffffffL;
+        boolean header = (b.getInt(20) & 0x80000000) != 0;
+        return size + (header ? 32 : 0);
+    }
+
+    // whether the file begins with tags the encoder wrote, so that it
+    // needn't be tagged afterwards
+    public static boolean isPresent(Path p, Format f) throws IOException {
+        try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(4);
+            if(f == Format.MP3) {
+                return read(ch, b, 0) && b.get(0) == 'I' && b.get(1) == 'D'
+                    && b.get(2) == '3';
+            } else if(f == Format.FLAC) {
+                long pos = 4;
+                while(read(ch, b, pos)) {
+                    int h = b.getInt(0);
+                    if(((h >> 24) & 0x7f) == 4) return true;
+                    if((h & 0x80000000) != 0) return false;
+                    pos += 4 + (h & 0xffffff);
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean read(FileChannel ch, ByteBuffer b, long pos)
+            throws IOException {
+        b.clear();
+        while(b.hasRemaining()) {
+            if(ch.read(b, pos + b.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    private static void writeVorbisString(ByteArrayOutputStream o, String s) {
+        byte[] bs = s.getBytes(StandardCharsets.UTF_8);
+        o.write(le32(bs.length), 0, 4);
+        o.write(bs, 0, bs.length);
+    }
+
+    private static void writeUTF8(ByteArrayOutputStream o, String s) {
+        byte[] bs = s.getBytes(StandardCharsets.UTF_8);
+        o.write(bs, 0, bs.length);
+    }
+
+    private static void writeASCII(ByteArrayOutputStream o, String s) {
+        byte[] bs = s.getBytes(StandardCharsets.US_ASCII);
+        o.write(bs, 0, bs.length);
+    }
+
+    private static byte[] le32(int v) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(v).array();
+    }
+
+    private static byte[] syncsafe(int v) {
+        return new byte[] {
+            (byte)((v >> 21) & 0x7f), (byte)((v >> 14) & 0x7f),
+            (byte)((v >> 7) & 0x7f), (byte)(v & 0x7f)
+        };
+    }
+}
@@ -0,0 +1,271 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+// Multipart upload of a take while it's being recorded: the output stage
+// reports how far the file has been written and every PART_BYTES past the
+// first part are uploaded as they fill.
+//
+// The first part is held back since that's where the headers are patched
+// when the encoder finishes, and the rendered file might have grown tags
+// in front of (or behind) the streamed bytes. So complete() checks the
+// streamed parts against the rendered file, by the part MD5s digested
+// while writing it if it's still those bytes or by reading it allowing for
+// such a shift, and then uploads the head and whatever follows the
+// streamed parts. Should
+// that not line up, or any part have failed, the upload is aborted and the
+// file is left to be uploaded the usual way.
+class StreamingUpload {
+    private static final int PART_BYTES = 8*1024*1024;
+
+    private final AmazonS3Client s3;
+    private final String bucket;
+    private final String key;
+    private final Path path;
+
+    private final ExecutorService ex = Executors.newSingleThreadExecutor();
+
+    // writer side
+    private long scheduled = PART_BYTES;
+
+    // uploader side
+    private FileChannel ch = null;
+    private String uploadId = null;
+    private final List<PartETag> etags = new ArrayList<>();
+    private final List<byte[]> digests = new ArrayList<>();
+    private volatile long uploaded = PART_BYTES;
+    private volatile boolean failed = false;
+
+    public StreamingUpload(AmazonS3Client s3, String bucket, String key,
+            Path path) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.path = path;
+    }
+
+    public String getKey() { return key; }
+
+    // called by the output stage once the bytes up to end are in the file
+    public void appended(long end) {
+        if(ex.isShutdown()) return;
+        while(end >= scheduled + PART_BYTES) {
+            final long from = scheduled;
+            ex.execute(new Runnable() {
+                public void run() { uploadPart(from); }
+            });
+            scheduled += PART_BYTES;
+        }
+    }
+
+    private void uploadPart(long from) {
+        if(failed) return;
+        try {
+            if(ch == null) {
+                ch = FileChannel.open(path, StandardOpenOption.READ);
+                long t = System.nanoTime();
+                uploadId = s3.initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(bucket, key))
+                    .getUploadId();
+                UploadService.timed(t);
+                Log.i(TAG, String.format("streaming upload (%s): s3://%s/%s",
+                            uploadId, bucket, key));
+            }
+
+            byte[] bs = read(ch, from, PART_BYTES);
+            int n = etags.size() + 2;
+            etags.add(put(n, bs));
+            digests.add(md5(bs));
+            uploaded = from + PART_BYTES;
+
+            Log.d(TAG, String.format("streamed part %d (%s): bytes=%d",
+                        n, key, uploaded));
+        } catch(Exception e) {
+            Log.e(TAG, "streaming upload failed: " + key, e);
+            failed = true;
+        }
+    }
+
+    // finishes the upload with the rendered sound, returns false if it has
+    // to be uploaded in full. The digest is the one taken while writing
+    // the take: if the sound is still those bytes its part MD5s are
+    // compared with the streamed parts', otherwise the rendered file is
+    // read and checked for a shift
+    public boolean complete(Sound s, ContentDigest digest) {
+        Path local = s.getLocal();
+        await();
+
+        try {
+            if(failed || uploadId == null) {
+                abort();
+                return false;
+            }
+
+            try(FileChannel f = FileChannel.open(local,
+                        StandardOpenOption.READ)) {
+                long size = f.size();
+                long streamed = uploaded - PART_BYTES;
+
+                long delta = -1;
+                if(digest != null
+                        && Arrays.equals(digest.getSHA1(), s.getSHA1())) {
+                    if(uploaded <= size && matches(digest.getPartMD5s())) {
+                        delta = 0;
+                    }
+                } else {
+                    // tags are either prepended or appended, try both
+                    long grown = size - ch.size();
+                    if(grown > 0 && grown + uploaded <= size
+                            && matches(f, grown)) {
+                        delta = grown;
+                    } else if(uploaded <= size && matches(f, 0)) {
+                        delta = 0;
+                    }
+                }
+                if(delta < 0) {
+                    Log.w(TAG, "rendered file doesn't match the streamed parts: "
+                            + local);
+                    abort();
+                    return false;
+                }
+
+                byte[] head = read(f, 0, (int)(PART_BYTES + delta));
+                etags.add(0, put(1, head));
+
+                long tail = uploaded + delta;
+                if(tail < size) {
+                    byte[] bs = read(f, tail, (int)(size - tail));
+                    etags.add(put(etags.size() + 1, bs));
+                }
+
+                long t = System.nanoTime();
+                s3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                            bucket, key, uploadId, etags));
+                UploadService.timed(t);
+
+                Log.i(TAG, String.format(
+                            "streaming upload completed (%s): streamed=%d head=%d tail=%d",
+                            key, streamed, head.length, size - tail));
+                return true;
+            }
+        } catch(Exception e) {
+            Log.e(TAG, "unable to complete streaming upload: " + key, e);
+            abort();
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    public void abort() {
+        await();
+        if(uploadId != null) {
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(
+                            bucket, key, uploadId));
+                Log.i(TAG, "streaming upload aborted: " + key);
+            } catch(Exception e) {
+                Log.w(TAG, "unable to abort streaming upload: " + key, e);
+            }
+            uploadId = null;
+        }
+        close();
+    }
+
+    // whether the streamed parts are the parts after the first of a file
+    // with the given part MD5s
+    private boolean matches(List<byte[]> parts) {
+        if(parts.size() <= digests.size()) return false;
+        for(int i = 0; i < digests.size(); ++i) {
+            if(!Arrays.equals(parts.get(i + 1), digests.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(FileChannel f, long delta) throws IOException {
+        for(int i = 0; i < digests.size(); ++i) {
+            long from = (long)PART_BYTES * (i + 1) + delta;
+            byte[] bs = read(f, from, PART_BYTES);
+            if(!Arrays.equals(md5(bs), digests.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private PartETag put(int n, byte[] bs) {
+        UploadPartRequest req = new UploadPartRequest()
+            .withBucketName(bucket)
+            .withKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(n)
+            .withPartSize(bs.length)
+            .withInputStream(new ByteArrayInputStream(bs));
+
+        long t = System.nanoTime();
+        PartETag e = s3.uploadPart(req).getPartETag();
+        long d = System.nanoTime() - t;
+        UploadService.S3_REQUEST.record(d);
+        UploadService.UPLOAD_BYTES.add(bs.length);
+        UploadService.UPLOAD_THROUGHPUT.set(
+                bs.length * 1000000000L / Math.max(1, d));
+        return e;
+    }
+
+    private void await() {
+        BatchingExecutor.awaitTermination(ex);
+    }
+
+    private void close() {
+        if(ch == null) return;
+        try {
+            ch.close();
+        } catch(IOException e) {
+            Log.w(TAG, "unable to close: " + path, e);
+        }
+        ch = null;
+    }
+
+    private static byte[] read(FileChannel f, long pos, int len)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while(b.hasRemaining()) {
+            int n = f.read(b, pos + b.position());
+            if(n < 0) throw new IOException("unexpected end of file");
+        }
+        return b.array();
+    }
+
+    private static byte[] md5(byte[] bs) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bs);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Copies a range of an encoded take into a file of its own without
+// re-encoding it, cutting at the frame boundaries marked while encoding
+// (see OutputStage.keepIndex): the start is moved back and the end forward
+// to the nearest ones, so nothing inside the range is lost.
+//
+// WAV is cut exactly. MP3 frames are copied as they are, after the ID3v2
+// tag the encoder put in front of them (the APEv2 tag with the take's
+// ReplayGain after them is left out). FLAC frames are copied too, but as
+// their headers number them from the start of the stream they are
+// renumbered, which means fixing the header's CRC-8 and the frame's CRC-16,
+// and STREAMINFO gets the new length.
+class TakeCutter {
+    private final Format format;
+    private final Path src;
+    private final OutputStage.Mark[] index;
+    private final int sampleRate;
+    private final int channels;
+
+    public TakeCutter(Format format, Path src, OutputStage.Mark[] index,
+            int sampleRate, int channels) {
+        this.format = format;
+        this.src = src;
+        this.index = index;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    // cuts [from, to) (in frames) into dst, returns the number of frames
+    // actually copied
+    public long cut(Path dst, long from, long to) throws IOException {
+        Path tmp = dst.resolveSibling(dst.getFileName() + ".tmp");
+        long frames;
+        try(FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            if(format == Format.WAV) {
+                frames = cutWAV(in, out, from, to);
+            } else if(format == Format.MP3) {
+                frames = cutMP3(in, out, from, to);
+            } else if(format == Format.FLAC) {
+                frames = cutFLAC(in, out, from, to);
+            } else {
+                throw new IllegalArgumentException("unsupported format");
+            }
+            out.force(true);
+        }
+        Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return frames;
+    }
+
+    private long cutWAV(FileChannel in, FileChannel out, long from, long to)
+            throws IOException {
+        long bytes = WAVFile.HEADER_BYTES;
+        long total = (in.size() - bytes) / (2 * channels);
+        to = Math.min(to, total);
+
+        long n = 2 * channels * (to - from);
+        write(out, WAVFile.header(sampleRate, channels, n), 0);
+        copy(in, bytes + 2 * channels * from, n, out, bytes);
+        return to - from;
+    }
+
+    private long cutMP3(FileChannel in, FileChannel out, long from, long to)
+            throws IOException {
+        long header = id3Bytes(in);
+        OutputStage.Mark a = floor(from, header);
+        OutputStage.Mark b = ceiling(to,
+                in.size() - StreamTags.apeBytes(in));
+        copy(in, 0, header, out, 0);
+        copy(in, a.bytes, b.bytes - a.bytes, out, header);
+        return (b.samples - a.samples) / channels;
+    }
+
+    private long cutFLAC(FileChannel in, FileChannel out, long from, long to)
+            throws IOException {
+        long header = flacHeaderBytes(in);
+        OutputStage.Mark a = floor(from, header);
+        OutputStage.Mark b = ceiling(to, in.size());
+
+        copy(in, 0, header, out, 0);
+
+        // the marks are frame boundaries, but there might be several frames
+        // between two of them
+        long pos = a.bytes, first = -1, firstSample = a.samples / channels;
+        ByteBuffer span = ByteBuffer.allocate(0);
+        for(int i = 0; i <= index.length && pos < b.bytes; ++i) {
+            long end = i < index.length ? index[i].bytes : in.size();
+            if(end <= pos) continue;
+            end = Math.min(end, b.bytes);
+
+            int l = (int)(end - pos);
+            if(span.capacity() < l) span = ByteBuffer.allocate(l);
+            span.clear().limit(l);
+            read(in, span, pos);
+
+            int s = 0;
+            while(s < l) {
+                int e = frameEnd(span.array(), s, l);
+                if(first < 0) first = number(span.array(), s);
+                write(out, renumber(span.array(), s, e, first, firstSample),
+                        out.size());
+                s = e;
+            }
+            pos = end;
+        }
+
+        long frames = (b.samples - a.samples) / channels;
+        SessionJournal.patchStreamInfo(out, frames);
+        return frames;
+    }
+
+    // bytes up to the first frame: the marker and the metadata blocks
+    private static long flacHeaderBytes(FileChannel in) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        read(in, b, 0);
+        if(!new String(b.array(), StandardCharsets.US_ASCII).equals("fLaC")) {
+            throw new IOException("not a FLAC file");
+        }
+
+        long pos = 4;
+        while(true) {
+            b.clear();
+            read(in, b, pos);
+            int h = b.getInt(0);
+            pos += 4 + (h & 0xffffff);
+            if((h & 0x80000000) != 0) return pos;
+        }
+    }
+
+    // bytes of the ID3v2 tag in front of the frames, if any
+    static long id3Bytes(FileChannel in) throws IOException {
+        if(in.size() < 10) return 0;
+        ByteBuffer b = ByteBuffer.allocate(10);
+        read(in, b, 0);
+        if(!new String(b.array(), 0, 3, StandardCharsets.US_ASCII)
+                .equals("ID3")) {
+            return 0;
+        }
+
+        long l = 0;
+        for(int i = 6; i < 10; ++i) l = (l << 7) | (b.get(i) & 0x7f);
+        boolean footer = (b.get(5) & 0x10) != 0;
+        return 10 + l + (footer ? 10 : 0);
+    }
+
+    // the last mark at or before the frame, or the start of the frames
+    private OutputStage.Mark floor(long frame, long start) {
+        OutputStage.Mark m = new OutputStage.Mark(start, 0);
+        for(OutputStage.Mark i : index) {
+            if(i.samples > frame * channels) break;
+            m = i;
+        }
+        return m;
+    }
+
+    // the first mark at or after the frame, or the end of the file
+    private OutputStage.Mark ceiling(long frame, long size) {
+        for(OutputStage.Mark i : index) {
+            if(i.samples >= frame * channels) return i;
+        }
+        long samples = index.length == 0 ? 0
+            : index[index.length - 1].samples;
+        return new OutputStage.Mark(size, samples);
+    }
+
+    // where the frame starting at s ends: where its CRC-16 checks out and
+    // either the span ends or another frame starts
+    private static int frameEnd(byte[] bs, int s, int l) throws IOException {
+        int c = 0;
+        for(int p = s; p < l; ++p) {
+            c = crc16(c, bs[p]);
+            if(c == 0 && p - s >= 6 && (p + 1 == l || isFrame(bs, p + 1, l))) {
+                return p + 1;
+            }
+        }
+        throw new IOException("unterminated FLAC frame");
+    }
+
+    private static boolean isFrame(byte[] bs, int s, int l) {
+        if(s + 6 > l) return false;
+        if((bs[s] & 0xff) != 0xff || (bs[s + 1] & 0xfe) != 0xf8) return false;
+        int h = headerLength(bs, s);
+        return s + h < l && crc8(bs, s, h) == bs[s + h];
+    }
+
+    // bytes of the frame header before its CRC-8
+    private static int headerLength(byte[] bs, int s) {
+        // blocksize and sample rate might follow the number
+        int bsz = (bs[s + 2] >> 4) & 0xf, sr = bs[s + 2] & 0xf;
+        int extra = (bsz == 6 ? 1 : bsz == 7 ? 2 : 0)
+            + (sr == 12 ? 1 : sr == 13 || sr == 14 ? 2 : 0);
+        return 4 + utf8Length(bs[s + 4]) + extra;
+    }
+
+    // the frame (fixed block size) or sample (variable) number of a frame
+    private static long number(byte[] bs, int s) {
+        int l = utf8Length(bs[s + 4]);
+        int b = bs[s + 4] & 0xff;
+        long v = l == 1 ? b : b & (0xff >> (l + 1));
+        for(int i = 1; i < l; ++i) {
+            v = (v << 6) | (bs[s + 4 + i] & 0x3f);
+        }
+        return v;
+    }
+
+    // the frame [s, e) with its number made relative to the first frame
+    // cut (or the first sample, for variable block sizes)
+    private static ByteBuffer renumber(byte[] bs, int s, int e, long first,
+            long firstSample) throws IOException {
+        if(!isFrame(bs, s, e)) {
+            throw new IOException("not at a FLAC frame");
+        }
+        boolean variable = (bs[s + 1] & 1) != 0;
+
+        long n = number(bs, s);
+        byte[] nb = encodeUTF8(variable ? n - firstSample : n - first);
+
+        int ol = utf8Length(bs[s + 4]);
+        int h = headerLength(bs, s);
+        int extra = h - 4 - ol;
+        int body = e - s - h - 1 - 2;
+
+        ByteBuffer g = ByteBuffer.allocate(4 + nb.length + extra + 1 + body + 2);
+        g.put(bs, s, 4);
+        g.put(nb);
+        g.put(bs, s + 4 + ol, extra);
+        g.put(crc8(g.array(), 0, g.position()));
+        g.put(bs, s + h + 1, body);
+        int c = 0;
+        for(int i = 0; i < g.position(); ++i) c = crc16(c, g.get(i));
+        g.putShort((short)c);
+        g.flip();
+        return g;
+    }
+
+    private static int utf8Length(byte b) {
+        int l = Integer.numberOfLeadingZeros(~(b << 24));
+        return l == 0 ? 1 : l;
+    }
+
+    private static byte[] encodeUTF8(long v) {
+        if(v < 0x80) return new byte[] { (byte)v };
+
+        int l = 2;
+        while(l < 7 && v >= 1L << (5 * l + 1)) l += 1;
+
+        byte[] bs = new byte[l];
+        for(int i = l - 1; i > 0; --i) {
+            bs[i] = (byte)(0x80 | (v & 0x3f));
+            v >>= 6;
+        }
+        bs[0] = (byte)((0xff00 >> l) | v);
+        return bs;
+    }
+
+    private static byte crc8(byte[] bs, int s, int n) {
+        int c = 0;
+        for(int i = s; i < s + n; ++i) {
+            c ^= bs[i] & 0xff;
+            for(int j = 0; j < 8; ++j) {
+                c = (c & 0x80) != 0 ? ((c << 1) ^ 0x07) & 0xff : c << 1;
+            }
+        }
+        return (byte)c;
+    }
+
+    private static final int[] CRC16 = new int[256];
+    static {
+        for(int i = 0; i < 256; ++i) {
+            int c = i << 8;
+            for(int j = 0; j < 8; ++j) {
+                c = (c & 0x8000) != 0 ? ((c << 1) ^ 0x8005) & 0xffff : c << 1;
+            }
+            CRC16[i] = c;
+        }
+    }
+
+    private static int crc16(int c, byte b) {
+        return ((c << 8) & 0xffff) ^ CRC16[(c >> 8) ^ (b & 0xff)];
+    }
+
+    private static void copy(FileChannel in, long pos, long n,
+            FileChannel out, long at) throws IOException {
+        while(n > 0) {
+            long c = in.transferTo(pos, n, out.position(at));
+            if(c <= 0) throw new IOException("unexpected end of file");
+            pos += c;
+            at += c;
+            n -= c;
+        }
+    }
+
+    private static void read(FileChannel ch, ByteBuffer b, long pos)
+            throws IOException {
+        while(b.hasRemaining()) {
+            if(ch.read(b, pos + b.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
+    private static void write(FileChannel ch, ByteBuffer b, long pos)
+            throws IOException {
+        while(b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+    }
+}
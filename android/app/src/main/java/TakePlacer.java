@@ -0,0 +1,121 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import android.util.Log;
+
+// Puts a finished take at its rendered destination without writing its
+// bytes again where the filesystem allows it: it's hard linked, and the
+// source unlinked unless the take is to be kept as well. An existing
+// destination is never replaced. Only across filesystems (or where
+// links aren't supported) is it copied, and then the source is removed
+// unless kept.
+class TakePlacer {
+    private static final Metrics.Histogram PLACE =
+        Metrics.histogram("finalize_place");
+    private static final Metrics.Counter MOVED =
+        Metrics.counter("finalize_moved");
+    private static final Metrics.Counter LINKED =
+        Metrics.counter("finalize_linked");
+    private static final Metrics.Counter COPIED_BYTES =
+        Metrics.counter("finalize_copied_bytes");
+
+    public static void place(Path src, Path dst, boolean keep)
+            throws IOException {
+        long t = System.nanoTime();
+        String how;
+        if(keep && link(src, dst)) {
+            LINKED.inc();
+            how = "linked";
+        } else if(!keep && move(src, dst)) {
+            MOVED.inc();
+            how = "moved";
+        } else {
+            copy(src, dst);
+            if(!keep) Files.delete(src);
+            how = "copied";
+        }
+
+        long d = System.nanoTime() - t;
+        PLACE.record(d);
+        Log.i(TAG, String.format("%s (%.2fms): %s -> %s",
+                    how, d / 1e6, src, dst));
+    }
+
+    // undoes a place that might have been cut short: a source that's gone
+    // is moved back from its destination, any other destination removed
+    public static void reclaim(Path src, Path dst) throws IOException {
+        if(!Files.exists(src) && Files.exists(dst)) {
+            Log.i(TAG, String.format("reclaiming: %s -> %s", dst, src));
+            Files.move(dst, src);
+        } else {
+            Files.deleteIfExists(dst);
+        }
+    }
+
+    private static boolean link(Path src, Path dst) throws IOException {
+        try {
+            Files.createLink(dst, src);
+            return true;
+        } catch(UnsupportedOperationException e) {
+            return false;
+        } catch(FileSystemException e) {
+            // e.g. EXDEV, or a filesystem without links
+            if(Files.exists(dst)) throw e;
+            Log.d(TAG, "unable to link, copying instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // a link and an unlink rather than a rename, which would silently
+    // replace an existing destination
+    private static boolean move(Path src, Path dst) throws IOException {
+        if(link(src, dst)) {
+            Files.delete(src);
+            return true;
+        }
+
+        if(Files.exists(dst)) {
+            throw new FileAlreadyExistsException(dst.toString());
+        }
+        try {
+            Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch(AtomicMoveNotSupportedException e) {
+            Log.d(TAG, "unable to move, copying instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void copy(Path src, Path dst) throws IOException {
+        Path tmp = dst.resolveSibling(dst.getFileName() + ".tmp");
+        try(FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            long n = in.size(), pos = 0;
+            while(pos < n) {
+                long c = in.transferTo(pos, n - pos, out);
+                if(c <= 0) throw new IOException("unexpected end of file");
+                pos += c;
+            }
+            out.force(true);
+            COPIED_BYTES.add(n);
+        }
+        if(Files.exists(dst)) {
+            Files.delete(tmp);
+            throw new FileAlreadyExistsException(dst.toString());
+        }
+        Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
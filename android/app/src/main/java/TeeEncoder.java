@@ -0,0 +1,208 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+// Feeds every chunk to several encoders, each on its own thread behind its
+// own bounded queue: a slow sink only holds up the capture once its queue is
+// full, and a failing sink is dropped without affecting the others: its
+// output is closed and removed
+//
+// The queues are single producer, single consumer rings of preallocated
+// chunks and their threads wait by parking, so that feeding the tee doesn't
+// allocate (which the locks of the blocking queues do when they contend).
+// With a single encoder this takes the encoding itself off the caller's
+// thread, and what the encoder allocates with it.
+class TeeEncoder extends Encoder {
+    private static final int QUEUE_LENGTH = 32;
+
+    private static class Chunk {
+        short[] samples = new short[0];
+        int length = 0;
+    }
+
+    private class Sink implements Runnable {
+        private final Encoder encoder;
+        private final Chunk[] ring = new Chunk[QUEUE_LENGTH];
+        private final Thread thread;
+        private volatile Exception failure = null;
+
+        // chunks filled (by the producer) and consumed (by the sink)
+        private volatile long filled = 0;
+        private volatile long consumed = 0;
+        private volatile boolean closed = false;
+        private volatile Thread producer = null;
+
+        public Sink(Encoder encoder, int i) {
+            this.encoder = encoder;
+            for(int j = 0; j < QUEUE_LENGTH; ++j) {
+                ring[j] = new Chunk();
+            }
+            thread = new Thread(this, "AudioJournal-tee-" + i);
+            thread.start();
+        }
+
+        public int getQueued() { return (int)(filled - consumed); }
+
+        public void offer(short[] samples, int length) {
+            if(filled - consumed == QUEUE_LENGTH) {
+                boolean interrupted = false;
+                producer = Thread.currentThread();
+                while(filled - consumed == QUEUE_LENGTH) {
+                    LockSupport.park(this);
+                    if(Thread.interrupted()) interrupted = true;
+                }
+                producer = null;
+                if(interrupted) Thread.currentThread().interrupt();
+            }
+
+            Chunk c = ring[(int)(filled % QUEUE_LENGTH)];
+            if(c.samples.length < length) {
+                c.samples = new short[length];
+            }
+            System.arraycopy(samples, 0, c.samples, 0, length);
+            c.length = length;
+            filled += 1;
+            LockSupport.unpark(thread);
+        }
+
+        public void close() {
+            closed = true;
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            try {
+                while(true) {
+                    try {
+                        thread.join();
+                        return;
+                    } catch(InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if(interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            while(true) {
+                if(consumed == filled) {
+                    // closed is read before filled is checked again, so
+                    // that the chunks offered before closing are drained
+                    if(closed && consumed == filled) break;
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                Chunk c = ring[(int)(consumed % QUEUE_LENGTH)];
+                if(failure == null) {
+                    try {
+                        encoder.update(c.samples, c.length);
+                    } catch(Exception e) {
+                        Log.e(TAG, "tee sink failed, dropping it", e);
+                        failure = e;
+                    }
+                }
+
+                consumed += 1;
+                Thread p = producer;
+                if(p != null) LockSupport.unpark(p);
+            }
+
+            if(failure == null) {
+                try {
+                    encoder.finalize();
+                } catch(Exception e) {
+                    Log.e(TAG, "tee sink failed to finalize", e);
+                    failure = e;
+                }
+            }
+
+            if(failure != null) abandon();
+        }
+
+        // closes the failed sink's stage, if it isn't already, and removes
+        // its partial output
+        private void abandon() {
+            OutputStage s = encoder.getStage();
+            if(s == null) return;
+            try {
+                s.close();
+            } catch(Exception e) {
+                Log.d(TAG, "closing failed tee sink: " + e.getMessage());
+            }
+
+            try {
+                Files.deleteIfExists(s.getPath());
+                Log.i(TAG, "removed failed tee sink output: " + s.getPath());
+            } catch(IOException e) {
+                Log.w(TAG, "unable to remove failed tee sink output: "
+                        + s.getPath(), e);
+            }
+        }
+    }
+
+    private final Sink[] sinks;
+    private volatile long samples_captured = 0;
+
+    public TeeEncoder(Encoder... encoders) {
+        sinks = new Sink[encoders.length];
+        for(int i = 0; i < encoders.length; ++i) {
+            sinks[i] = new Sink(encoders[i], i);
+        }
+    }
+
+    public int getSinkCount() { return sinks.length; }
+
+    public boolean isFailed(int i) { return sinks[i].failure != null; }
+
+    public int getQueued(int i) { return sinks[i].getQueued(); }
+
+    public long getSamplesCaptured() { return samples_captured; }
+
+    public long getSamplesEncoded() {
+        long s = samples_captured;
+        for(Sink k : sinks) {
+            if(k.failure == null) {
+                s = Math.min(s, k.encoder.getSamplesEncoded());
+            }
+        }
+        return s;
+    }
+
+    public void update(short samples[], int length) throws IOException {
+        samples_captured += length;
+
+        boolean fed = false;
+        for(Sink k : sinks) {
+            if(k.failure == null) {
+                k.offer(samples, length);
+                fed = true;
+            }
+        }
+        if(!fed) throw new IOException("all tee sinks failed",
+                sinks[0].failure);
+    }
+
+    public void finalize() throws IOException {
+        for(Sink k : sinks) k.close();
+
+        for(Sink k : sinks) {
+            if(k.failure == null) return;
+        }
+
+        throw new IOException("all tee sinks failed", sinks[0].failure);
+    }
+
+    @Override
+    public void collectStats(SessionStats stats) {
+        for(Sink k : sinks) {
+            k.encoder.collectStats(stats);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.rootmos.audiojournal;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.util.SparseArray;
+
+// Posts progress notifications at most once per interval and only when what
+// they display has changed, so callers can report progress as often as they
+// like. Check due() before building the notification to skip that too.
+class ThrottledNotifier {
+    private final NotificationManager nm;
+    private final long intervalNanos;
+
+    private static class Posted {
+        String content = null;
+        long at = 0;
+    }
+    private final SparseArray<Posted> posted = new SparseArray<>();
+
+    public ThrottledNotifier(NotificationManager nm, long intervalMillis) {
+        this.nm = nm;
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    // whether a notification displaying content would be posted now
+    public synchronized boolean due(int id, String content) {
+        Posted p = posted.get(id);
+        if(p == null) return true;
+        if(content != null && content.equals(p.content)) return false;
+        return System.nanoTime() - p.at >= intervalNanos;
+    }
+
+    public synchronized void notify(int id, String content, Notification n) {
+        Posted p = posted.get(id);
+        if(p == null) {
+            p = new Posted();
+            posted.put(id, p);
+        }
+        p.content = content;
+        p.at = System.nanoTime();
+        nm.notify(id, n);
+    }
+
+    public synchronized void cancel(int id) {
+        posted.remove(id);
+        nm.cancel(id);
+    }
+}
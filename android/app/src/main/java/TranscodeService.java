@@ -0,0 +1,358 @@
+package io.rootmos.audiojournal;
+
+import static io.rootmos.audiojournal.Common.TAG;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.IBinder;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+// Encodes raw captures into their templates' formats after the fact.
+//
+// Each capture is a job file in the queue directory which is only removed
+// once the encoded files have replaced the raw one, so jobs interrupted by
+// the process dying are picked up again by resume(). Jobs are run one at a
+// time, in the order they were recorded.
+//
+// The attempts at a job are counted in it, before each one starts so that
+// those killing the process count too, and a job that's used up its
+// attempts (or can't be read) is moved aside to the failed/ directory of
+// the queue along with its capture left as it was.
+public class TranscodeService extends Service {
+    private static int NOTIFICATION_ID = 5108273;
+    private static String JOB_SUFFIX = ".job";
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final Metrics.Counter FAILED =
+        Metrics.counter("transcode_failed");
+
+    private NotificationManager nm = null;
+    private ThrottledNotifier notifier = null;
+    private NotificationChannel nc = null;
+    private Executor ex = null;
+    private Settings settings = new Settings(this);
+
+    @Override
+    public void onCreate() {
+        nm = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        notifier = new ThrottledNotifier(nm, 1000);
+        ex = Executors.newFixedThreadPool(1);
+
+        nc = new NotificationChannel(
+                "AUDIO_JOURNAL_TRANSCODE", "Encoding progress",
+                NotificationManager.IMPORTANCE_LOW);
+        nm.createNotificationChannel(nc);
+
+        startForeground(NOTIFICATION_ID, buildNotification(null, 0));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.i(TAG, String.format("transcode service start (%d): %s",
+                    startId, intent));
+
+        new TranscodeTask(startId).executeOnExecutor(ex);
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "transcode service destroyed");
+    }
+
+    public static void enqueue(Context ctx, MetadataTemplate template,
+            Path destDir, Path src, Sound raw) {
+        JSONObject j = new JSONObject();
+        try {
+            j.put("template", template.toJSON());
+            j.put("dest_dir", destDir.toString());
+            j.put("source", src.toString());
+            j.put("metadata", raw.getMetadata().toString());
+            j.put("time", raw.getDateTime().format(
+                        DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+            j.put("length", raw.getDuration());
+            j.put("encoded", false);
+            if(raw.getSession() != null) {
+                j.put("session", raw.getSession());
+                j.put("part", raw.getPart());
+            }
+        } catch(JSONException e) {
+            throw new RuntimeException("unable to populate JSON object", e);
+        }
+
+        Path job = new Settings(ctx).getTranscodeQueueDir()
+            .resolve(src.getFileName() + JOB_SUFFIX);
+        try {
+            writeJob(job, j);
+        } catch(IOException e) {
+            throw new RuntimeException("unable to queue: " + src, e);
+        }
+        Log.i(TAG, "queued for encoding: " + src);
+
+        start(ctx);
+    }
+
+    // restart any jobs left behind by a previous process
+    public static void resume(Context ctx) {
+        if(!listJobs(new Settings(ctx).getTranscodeQueueDir()).isEmpty()) {
+            start(ctx);
+        }
+    }
+
+    private static void start(Context ctx) {
+        Intent i = new Intent(ctx, TranscodeService.class);
+        if(ctx.startService(i) == null) {
+            throw new RuntimeException("unable to start transcode service");
+        }
+    }
+
+    private static List<Path> listJobs(Path q) {
+        ArrayList<Path> js = new ArrayList<>();
+        try(DirectoryStream<Path> ds =
+                Files.newDirectoryStream(q, "*" + JOB_SUFFIX)) {
+            for(Path p : ds) js.add(p);
+        } catch(IOException e) {
+            throw new RuntimeException("unable to list: " + q, e);
+        }
+        Collections.sort(js);
+        return js;
+    }
+
+    private static void writeJob(Path job, JSONObject j) throws IOException {
+        Path tmp = job.resolveSibling(job.getFileName() + ".tmp");
+        Files.write(tmp, j.toString().getBytes("UTF-8"));
+        Files.move(tmp, job, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Notification buildNotification(String title, int progress) {
+        Notification.Builder b = new Notification.Builder(this, nc.getId())
+            .setSmallIcon(R.drawable.start_recording)
+            .setSubText("encoding...");
+
+        if(title != null) {
+            b.setContentTitle(title).setProgress(100, progress, false);
+        }
+
+        return b.build();
+    }
+
+    private class Job {
+        String title = null;
+        int progress = 0;
+
+        public Job(String title, int progress) {
+            this.title = title;
+            this.progress = progress;
+        }
+    }
+
+    private class TranscodeTask extends AsyncTask<Void, Job, Void> {
+        private int startId = 0;
+
+        public TranscodeTask(int startId) {
+            this.startId = startId;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for(Path job : listJobs(settings.getTranscodeQueueDir())) {
+                try {
+                    transcode(job);
+                } catch(JSONException e) {
+                    Log.e(TAG, "unreadable job: " + job, e);
+                    fail(job);
+                } catch(Exception e) {
+                    Log.e(TAG, "unable to encode: " + job, e);
+                }
+            }
+            return null;
+        }
+
+        private void transcode(Path job) throws IOException, JSONException {
+            JSONObject j = new JSONObject(
+                    new String(Files.readAllBytes(job), "UTF-8"));
+
+            int attempts = j.optInt("attempts", 0) + 1;
+            if(attempts > MAX_ATTEMPTS) {
+                Log.e(TAG, String.format(
+                            "giving up on job after %d attempts: %s",
+                            MAX_ATTEMPTS, job));
+                fail(job);
+                return;
+            }
+            j.put("attempts", attempts);
+            writeJob(job, j);
+
+            MetadataTemplate t = MetadataTemplate.fromJSON(
+                    j.getString("template"));
+            Path destDir = Paths.get(j.getString("dest_dir"));
+            Path src = Paths.get(j.getString("source"));
+            OffsetDateTime time = OffsetDateTime.parse(j.getString("time"));
+            float length = (float)j.getDouble("length");
+            String session = j.optString("session", null);
+            int part = j.optInt("part", 0);
+
+            String base = src.getFileName().toString()
+                .replaceAll("\\.wav$", "");
+            List<Path> outs = new ArrayList<>();
+            for(Format f : t.getFormats()) {
+                outs.add(src.resolveSibling(
+                            base + MetadataTemplate.selectSuffix(f)));
+            }
+
+            String title = t.renderTitle(time);
+            if(!j.getBoolean("encoded")) {
+                Log.i(TAG, String.format("encoding: %s -> %s", src, outs));
+                Loudness l = encode(title, t.renderTags(time), src,
+                        t.getFormats(), outs);
+                j.put("loudness", l.toJSON());
+                j.put("encoded", true);
+                writeJob(job, j);
+            }
+
+            // a previous attempt might have died while rendering
+            for(Path o : outs) {
+                TakePlacer.reclaim(o, t.renderDestination(destDir, o, time, part));
+            }
+            JSONObject lj = j.optJSONObject("loudness");
+            Loudness l = lj != null ? Loudness.fromJSON(lj) : null;
+            List<Sound> ss = t.renderLocalFiles(destDir, outs, null,
+                    settings.getKeepTakes(), time, length, session, part, l);
+
+            Path m = Paths.get(j.getString("metadata"));
+            Sound raw = Files.exists(m) ? Sound.fromLocalFile(m) : null;
+
+            // the peaks were made while capturing, they hold for any encoding
+            if(raw != null && Files.exists(raw.getPeaks())) {
+                for(Sound s : ss) {
+                    Files.copy(raw.getPeaks(), s.getPeaks(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.delete(raw.getPeaks());
+            }
+
+            if(raw != null && raw.getLocal() != null) {
+                Files.delete(raw.getLocal());
+            }
+            Files.deleteIfExists(m);
+            // the capture is spent once encoded, only encoded takes are kept
+            Files.deleteIfExists(src);
+            Files.delete(job);
+
+            Log.i(TAG, "encoded: " + ss);
+
+            if(t.getAutoUpload()) {
+                for(Sound s : ss) {
+                    UploadService.upload(TranscodeService.this, s);
+                }
+            }
+        }
+
+        private void fail(Path job) {
+            FAILED.inc();
+            try {
+                Path d = job.resolveSibling("failed");
+                Files.createDirectories(d);
+                Files.move(job, d.resolve(job.getFileName()),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch(IOException e) {
+                Log.e(TAG, "unable to move aside failed job: " + job, e);
+            }
+        }
+
+        // feeds the capture through the same encoders in the same chunks as
+        // when recording, with the FLAC effort pinned at its ceiling, and
+        // measures its loudness on the way
+        private Loudness encode(String title, StreamTags tags, Path src,
+                List<Format> fs, List<Path> outs) throws IOException {
+            try(WAVFile.Reader r = new WAVFile.Reader(src,
+                        Encoder.CHUNK_FRAMES)) {
+                int threads = Math.max(0,
+                        Runtime.getRuntime().availableProcessors() - 1);
+
+                Encoder[] es = new Encoder[outs.size()];
+                for(int i = 0; i < es.length; ++i) {
+                    es[i] = Encoder.PCM16(fs.get(i), outs.get(i),
+                            r.getSampleRate(), threads, 0,
+                            OutputStage.FsyncPolicy.onStop(), tags);
+                }
+                Encoder e = es.length == 1 ? es[0] : new TeeEncoder(es);
+                LoudnessMeter m = new LoudnessMeter(r.getSampleRate(),
+                        r.getChannels());
+
+                short[] samples = new short[r.getChunkSize()];
+                int progress = -1;
+                int n;
+                while((n = r.read(samples)) >= 0) {
+                    e.update(samples, n);
+                    m.update(samples, n);
+
+                    int p = (int)(100 * (r.getLength() - r.getRemaining())
+                            / Math.max(1, r.getLength()));
+                    if(p != progress) {
+                        publishProgress(new Job(title, p));
+                        progress = p;
+                    }
+                }
+                Loudness l = m.getLoudness();
+                tags.setLoudness(l);
+                e.finalize();
+
+                if(e instanceof TeeEncoder) {
+                    for(int i = 0; i < es.length; ++i) {
+                        if(((TeeEncoder)e).isFailed(i)) {
+                            throw new IOException(
+                                    "unable to encode: " + outs.get(i));
+                        }
+                    }
+                }
+
+                return l;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Job... js) {
+            Job j = js[js.length - 1];
+            String c = j.title + ":" + j.progress;
+            if(notifier.due(NOTIFICATION_ID, c)) {
+                notifier.notify(NOTIFICATION_ID, c,
+                        buildNotification(j.title, j.progress));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void v) {
+            stopSelf(startId);
+        }
+    }
+}
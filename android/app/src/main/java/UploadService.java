@@ -2,7 +2,8 @@ package io.rootmos.audiojournal;
 
 import static io.rootmos.audiojournal.Common.TAG;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Set;
@@ -21,6 +22,7 @@ import android.util.Log;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.event.ProgressListener;
@@ -31,7 +33,16 @@ import org.apache.commons.codec.binary.Hex;
 public class UploadService extends Service {
     private static int NOTIFICATION_ID = 8544647;
     private static String NOTIFICATION_GROUP = "io.rootmos.audiojournal.UPLOAD";
+    private static int NOTIFICATION_MILLIS = 1000;
+
+    static final Metrics.Counter UPLOAD_BYTES =
+        Metrics.counter("upload_bytes");
+    static final Metrics.Gauge UPLOAD_THROUGHPUT =
+        Metrics.gauge("upload_bytes_per_second");
+    static final Metrics.Histogram S3_REQUEST =
+        Metrics.histogram("s3_request");
     private NotificationManager nm = null;
+    private ThrottledNotifier notifier = null;
     private NotificationChannel nc = null;
 
     private AmazonS3Client s3 = null;
@@ -40,14 +51,15 @@ public class UploadService extends Service {
     private Set<Sound> active = new HashSet<>();
 
     public class Binder extends android.os.Binder {
+        public String getMetrics() { return Metrics.toJSON(); }
     }
 
     @Override
     public void onCreate() {
         nm = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        notifier = new ThrottledNotifier(nm, NOTIFICATION_MILLIS);
 
-        s3 = new AmazonS3Client(AWSAuth.getAuth(),
-                Region.getRegion(settings.getBucketRegion()));
+        s3 = newClient(settings);
 
         nc = new NotificationChannel(
                 "AUDIO_JOURNAL_UPLOAD", "Upload progress",
@@ -105,48 +117,83 @@ public class UploadService extends Service {
             if(!active.contains(s)) {
                 active.add(s);
                 notify(s, 0);
-                new UploadTask().execute(s);
+                new UploadTask(i.getBooleanExtra("streamed", false))
+                    .execute(s);
             }
-        } catch(FileNotFoundException e) {
-            Log.e(TAG, "unable to find: " + raw, e);
+        } catch(IOException e) {
+            Log.e(TAG, "unable to read: " + raw, e);
         }
     }
 
     public static void upload(Context ctx, Sound s) {
+        upload(ctx, s, false);
+    }
+
+    // streamed sounds already have their audio uploaded
+    public static void upload(Context ctx, Sound s, boolean streamed) {
         Intent i = new Intent(ctx, UploadService.class);
         i.putExtra("metadata", s.getMetadata().toString());
+        i.putExtra("streamed", streamed);
 
         if(ctx.startService(i) == null) {
             throw new RuntimeException("unable to start recording service");
         }
     }
 
+    public static AmazonS3Client newClient(Settings settings) {
+        AmazonS3Client s3 = new AmazonS3Client(AWSAuth.getAuth(),
+                Region.getRegion(settings.getBucketRegion()));
+
+        String e = settings.getS3Endpoint();
+        if(e != null) {
+            Log.i(TAG, "using S3 endpoint: " + e);
+            s3.setEndpoint(e);
+            s3.setS3ClientOptions(S3ClientOptions.builder()
+                    .setPathStyleAccess(true).build());
+        }
+
+        return s3;
+    }
+
+    // the key a local file under the base dir is uploaded to
+    public static String keyFor(Settings settings, Path local) {
+        Path r = settings.getBaseDir().relativize(local.getParent());
+        return r.toString() + "/" + local.getFileName();
+    }
+
     private class Progress implements ProgressListener {
         private Sound s = null;
         private long sum = 0;
         private long total = 0;
 
+        private String sha1 = null;
+
         public Progress(Sound s) {
             this.s = s;
             this.total = s.getLocal().toFile().length();
+            this.sha1 = Hex.encodeHexString(s.getSHA1());
         }
 
         public void progressChanged(ProgressEvent e) {
-            String sha1 = Hex.encodeHexString(s.getSHA1());
             try {
                 switch(e.getEventCode()) {
                     case 0: // uhm?
                         sum += e.getBytesTransferred();
-                        Log.i(TAG, String.format(
-                                    "upload progress (%s): bytes=%d",
-                                    sha1, sum));
+                        UPLOAD_BYTES.add(e.getBytesTransferred());
+                        if(Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, String.format(
+                                        "upload progress (%s): bytes=%d",
+                                        sha1, sum));
+                        }
                         UploadService.this.notify(s, (int)(100*sum/total));
                         break;
                     default:
-                        Log.d(TAG, String.format(
-                                    "upload progress (%s): bytes=%d event=%d",
-                                    sha1, e.getBytesTransferred(),
-                                    e.getEventCode()));
+                        if(Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, String.format(
+                                        "upload progress (%s): bytes=%d event=%d",
+                                        sha1, e.getBytesTransferred(),
+                                        e.getEventCode()));
+                        }
                 }
             } catch(Exception ex) {
                 Log.e(TAG, String.format(
@@ -157,6 +204,12 @@ public class UploadService extends Service {
     }
 
     private class UploadTask extends AsyncTask<Sound, Sound, Boolean> {
+        private boolean streamed = false;
+
+        public UploadTask(boolean streamed) {
+            this.streamed = streamed;
+        }
+
         @Override
         protected Boolean doInBackground(Sound... ss) {
             for(Sound s : ss) {
@@ -164,22 +217,58 @@ public class UploadService extends Service {
                 Path r = settings.getBaseDir()
                     .relativize(s.getLocal().getParent());
                 String bucket = settings.getBucketName();
-                String key = r.toString() + "/" + s.getFilename();
+                String key = keyFor(settings, s.getLocal());
+
+                long t = System.nanoTime();
+                Path peaks = s.getPeaks();
+                if(peaks != null && Files.exists(peaks)) {
+                    String peaksKey = r.toString() + "/" + peaks.getFileName();
+                    Log.d(TAG, String.format("uploading: s3://%s/%s",
+                                bucket, peaksKey));
+                    s3.putObject(bucket, peaksKey, peaks.toFile());
+                    t = timed(t);
+                    s3.setObjectAcl(bucket, peaksKey,
+                            CannedAccessControlList.PublicRead);
+                    t = timed(t);
+                    s.setPeaksURI(Uri.parse(
+                                s3.getResourceUrl(bucket, peaksKey)));
+                }
 
                 String metadataKey = r.toString() + "/" + s.getMetadata().getFileName();
                 Log.d(TAG, String.format("uploading: s3://%s/%s", bucket, metadataKey));
                 s.setURI(Uri.parse(s3.getResourceUrl(bucket, key)));
                 s3.putObject(bucket, metadataKey, s.toJSON());
+                t = timed(t);
                 s3.setObjectAcl(bucket, metadataKey,
                         CannedAccessControlList.PublicRead);
-
-                Log.d(TAG, String.format("uploading: s3://%s/%s", bucket, key));
-                PutObjectRequest req = new PutObjectRequest(
-                        bucket, key, s.getLocal().toFile())
-                    .withGeneralProgressListener(new Progress(s));
-                s3.putObject(req);
+                t = timed(t);
+
+                if(!streamed) {
+                    Log.d(TAG, String.format("uploading: s3://%s/%s",
+                                bucket, key));
+                    PutObjectRequest req = new PutObjectRequest(
+                            bucket, key, s.getLocal().toFile())
+                        .withGeneralProgressListener(new Progress(s));
+                    s3.putObject(req);
+
+                    long d = System.nanoTime() - t;
+                    UPLOAD_THROUGHPUT.set(req.getFile().length()
+                            * 1000000000L / Math.max(1, d));
+                    t = timed(t);
+                }
                 s3.setObjectAcl(bucket, key,
                         CannedAccessControlList.PublicRead);
+                timed(t);
+
+                try {
+                    new BucketManifest(s3, bucket,
+                            settings.getUpstreamCacheDir()).add(s);
+                } catch(Exception e) {
+                    Log.w(TAG, String.format(
+                                "unable to update manifest (%s): %s",
+                                Hex.encodeHexString(s.getSHA1()),
+                                s.getTitle()), e);
+                }
 
                 Log.i(TAG, String.format("uploaded (%s): %s",
                             Hex.encodeHexString(s.getSHA1()), s.getTitle()));
@@ -198,7 +287,17 @@ public class UploadService extends Service {
         }
     }
 
+    // records the latency of an S3 request started at t, returns now
+    static long timed(long t) {
+        long n = System.nanoTime();
+        S3_REQUEST.record(n - t);
+        return n;
+    }
+
     private void notify(Sound s, int progress) {
+        String c = Integer.toString(progress);
+        if(!notifier.due(s.hashCode(), c)) return;
+
         Notification n = new Notification.Builder(this, nc.getId())
             .setSmallIcon(R.drawable.upload)
             .setGroup(NOTIFICATION_GROUP)
@@ -207,15 +306,20 @@ public class UploadService extends Service {
             .setProgress(100, progress, progress == 0)
             .build();
 
-        nm.notify(s.hashCode(), n);
+        notifier.notify(s.hashCode(), c, n);
     }
 
     private void completed(Sound s) {
         active.remove(s);
 
-        nm.cancel(s.hashCode());
+        notifier.cancel(s.hashCode());
 
         if(active.isEmpty()) {
+            try {
+                Metrics.dump(settings.getMetricsFile());
+            } catch(IOException e) {
+                Log.w(TAG, "unable to dump metrics", e);
+            }
             stopSelf();
         }
     }
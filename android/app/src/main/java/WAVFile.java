@@ -0,0 +1,200 @@
+package io.rootmos.audiojournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 16 bit PCM WAV files: the header reserves a JUNK chunk large enough to be
+// turned into a ds64 chunk, so a file growing past 4GB is finished as RF64
+// in place. While being written the data size is left as 0xffffffff, which
+// readers take to mean "until the end of the file".
+class WAVFile {
+    private static final long UNKNOWN = 0xffffffffL;
+    private static final int DS64_BYTES = 28;
+    public static final int HEADER_BYTES = 12 + 8 + DS64_BYTES + 8 + 16 + 8;
+
+    // header of a file still being written
+    public static ByteBuffer header(int sampleRate, int channels) {
+        return header(sampleRate, channels, -1);
+    }
+
+    // header of a file with the given amount of sample data, RF64 if it
+    // doesn't fit in a plain RIFF file
+    public static ByteBuffer header(int sampleRate, int channels,
+            long dataBytes) {
+        long riffBytes = HEADER_BYTES - 8 + dataBytes;
+        boolean rf64 = riffBytes >= UNKNOWN;
+
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        if(dataBytes < 0 || rf64) {
+            b.put(id(rf64 ? "RF64" : "RIFF")).putInt((int)UNKNOWN);
+        } else {
+            b.put(id("RIFF")).putInt((int)riffBytes);
+        }
+        b.put(id("WAVE"));
+
+        if(rf64) {
+            b.put(id("ds64")).putInt(DS64_BYTES)
+                .putLong(riffBytes)
+                .putLong(dataBytes)
+                .putLong(dataBytes / (2 * channels))
+                .putInt(0);
+        } else {
+            b.put(id("JUNK")).putInt(DS64_BYTES).put(new byte[DS64_BYTES]);
+        }
+
+        b.put(id("fmt ")).putInt(16)
+            .putShort((short)1)
+            .putShort((short)channels)
+            .putInt(sampleRate)
+            .putInt(sampleRate * channels * 2)
+            .putShort((short)(channels * 2))
+            .putShort((short)16);
+
+        if(dataBytes < 0 || rf64) {
+            b.put(id("data")).putInt((int)UNKNOWN);
+        } else {
+            b.put(id("data")).putInt((int)dataBytes);
+        }
+
+        b.flip();
+        return b;
+    }
+
+    public static void finish(OutputStage o, int sampleRate, int channels,
+            long dataBytes) throws IOException {
+        o.writeAt(header(sampleRate, channels, dataBytes), 0);
+    }
+
+    private static byte[] id(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // sequential reader of the interleaved samples of a 16 bit PCM file
+    public static class Reader implements AutoCloseable {
+        private final FileChannel ch;
+        private ByteBuffer b = null;
+        private ShortBuffer v = null;
+
+        private int sampleRate = 0;
+        private int channels = 0;
+        private long length = 0;
+        private long remaining = 0;
+
+        // reads are done in chunks of the given number of frames
+        public Reader(Path p, int frames) throws IOException {
+            ch = FileChannel.open(p, StandardOpenOption.READ);
+            try {
+                parse();
+            } catch(IOException e) {
+                ch.close();
+                throw e;
+            }
+
+            b = ByteBuffer.allocateDirect(2 * channels * frames)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            v = b.asShortBuffer();
+        }
+
+        private void parse() throws IOException {
+            ByteBuffer h = ByteBuffer.allocate(DS64_BYTES + 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(h, 0, 12);
+            String riff = ascii(h, 0);
+            if(!(riff.equals("RIFF") || riff.equals("RF64"))
+                    || !ascii(h, 8).equals("WAVE")) {
+                throw new IOException("not a WAV file");
+            }
+
+            long ds64Data = -1;
+            long pos = 12;
+            while(true) {
+                readFully(h, pos, 8);
+                String id = ascii(h, 0);
+                long size = h.getInt(4) & UNKNOWN;
+                pos += 8;
+
+                if(id.equals("ds64")) {
+                    readFully(h, pos, 16);
+                    ds64Data = h.getLong(8);
+                } else if(id.equals("fmt ")) {
+                    readFully(h, pos, 16);
+                    if(h.getShort(0) != 1 || h.getShort(14) != 16) {
+                        throw new IOException("not 16 bit PCM");
+                    }
+                    channels = h.getShort(2);
+                    sampleRate = h.getInt(4);
+                } else if(id.equals("data")) {
+                    if(channels == 0) {
+                        throw new IOException("data before fmt chunk");
+                    }
+                    if(ds64Data >= 0) {
+                        remaining = ds64Data;
+                    } else if(size == UNKNOWN) {
+                        remaining = ch.size() - pos;
+                    } else {
+                        remaining = size;
+                    }
+                    remaining = Math.min(remaining, ch.size() - pos);
+                    length = remaining / 2;
+                    ch.position(pos);
+                    return;
+                }
+
+                pos += size + (size & 1);
+            }
+        }
+
+        private void readFully(ByteBuffer h, long pos, int n)
+                throws IOException {
+            h.clear().limit(n);
+            while(h.hasRemaining()) {
+                int r = ch.read(h, pos + h.position());
+                if(r < 0) throw new IOException("truncated WAV header");
+            }
+        }
+
+        private static String ascii(ByteBuffer h, int offset) {
+            byte[] bs = new byte[4];
+            for(int i = 0; i < 4; ++i) bs[i] = h.get(offset + i);
+            return new String(bs, StandardCharsets.US_ASCII);
+        }
+
+        public int getSampleRate() { return sampleRate; }
+        public int getChannels() { return channels; }
+        public int getChunkSize() { return v.capacity(); }
+
+        // total number of interleaved samples and the number left to read
+        public long getLength() { return length; }
+        public long getRemaining() { return remaining / 2; }
+
+        // reads up to a chunk of interleaved samples, returns the number of
+        // samples read or -1 at the end of the data
+        public int read(short[] samples) throws IOException {
+            if(remaining < 2) return -1;
+
+            b.clear();
+            if(remaining < b.capacity()) b.limit((int)(remaining & ~1L));
+            while(b.hasRemaining()) {
+                if(ch.read(b) < 0) break;
+            }
+            int n = b.position() / 2;
+            remaining -= 2 * n;
+            if(n == 0) return -1;
+
+            v.clear();
+            v.get(samples, 0, n);
+            return n;
+        }
+
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.rootmos.audiojournal;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+// Draws a sound's peaks, one min/max line per pixel column, with a cursor
+// at the playback position; touching it scrubs.
+public class WaveformView extends View {
+    public interface OnSeekListener {
+        void onSeek(float fraction);
+    }
+
+    private Peaks peaks = null;
+    private float position = -1;
+    private OnSeekListener listener = null;
+
+    private float[] lines = new float[0];
+    private final Paint wave = new Paint();
+    private final Paint cursor = new Paint();
+
+    public WaveformView(Context ctx, AttributeSet attrs) {
+        super(ctx, attrs);
+        wave.setColor(Color.GRAY);
+        cursor.setColor(Color.RED);
+        cursor.setStrokeWidth(2);
+    }
+
+    public void setPeaks(Peaks peaks) {
+        this.peaks = peaks;
+        layoutLines();
+        invalidate();
+    }
+
+    // as a fraction of the sound's length, negative to hide the cursor
+    public void setPosition(float position) {
+        this.position = position;
+        invalidate();
+    }
+
+    public void setOnSeekListener(OnSeekListener l) { listener = l; }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int ow, int oh) {
+        super.onSizeChanged(w, h, ow, oh);
+        layoutLines();
+    }
+
+    // the lines only change with the peaks or the size, not when drawn
+    private void layoutLines() {
+        int w = getWidth();
+        if(peaks == null || w == 0 || peaks.getBins(0) == 0) {
+            lines = new float[0];
+            return;
+        }
+
+        float mid = getHeight() / 2f;
+        int n = peaks.getBins(0);
+        lines = new float[4*w];
+        for(int x = 0; x < w; ++x) {
+            int from = (int)((long)x * n / w);
+            int to = Math.max(from + 1, (int)((long)(x + 1) * n / w));
+            byte lo = Byte.MAX_VALUE, hi = Byte.MIN_VALUE;
+            for(int b = from; b < to && b < n; ++b) {
+                lo = (byte)Math.min(lo, peaks.getMin(0, b));
+                hi = (byte)Math.max(hi, peaks.getMax(0, b));
+            }
+
+            lines[4*x] = x;
+            lines[4*x + 1] = mid - hi * mid / 128f;
+            lines[4*x + 2] = x;
+            lines[4*x + 3] = mid - lo * mid / 128f + 1;
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas c) {
+        super.onDraw(c);
+        c.drawLines(lines, wave);
+
+        if(position >= 0) {
+            float x = position * getWidth();
+            c.drawLine(x, 0, x, getHeight(), cursor);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent e) {
+        if(peaks == null || listener == null) return false;
+
+        switch(e.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+            case MotionEvent.ACTION_UP:
+                float f = Math.max(0, Math.min(1, e.getX() / getWidth()));
+                setPosition(f);
+                listener.onSeek(f);
+                if(e.getAction() == MotionEvent.ACTION_UP) performClick();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+}
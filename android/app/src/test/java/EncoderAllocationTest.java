@@ -0,0 +1,73 @@
+package io.rootmos.audiojournal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The recording loop hands the encoders a chunk at a time and mustn't
+// allocate while doing so, lest the collector pauses it into an overrun.
+// RecordingService tees even a single encoder, so it's the TeeEncoder that's
+// measured: the encoding (and its allocations) happens on the sinks' threads.
+public class EncoderAllocationTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int WARMUP = 1000;
+    private static final int CHUNKS = 2000;
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private long allocated(Format format, int threads) throws IOException {
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        String f = "take." + format.name().toLowerCase();
+        Path p = tmp.newFile(f).toPath();
+        Encoder e = new TeeEncoder(new Encoder[] {
+            Encoder.PCM16(format, p, SAMPLE_RATE, threads, 0,
+                    OutputStage.FsyncPolicy.onStop(), null)
+        });
+
+        short[] chunk = new short[Encoder.CHUNK_FRAMES * 2];
+        Random r = new Random(0);
+        for(int i = 0; i < chunk.length; i++) {
+            chunk[i] = (short)(r.nextGaussian() * 1000);
+        }
+
+        for(int i = 0; i < WARMUP; i++) e.update(chunk, chunk.length);
+
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        for(int i = 0; i < CHUNKS; i++) e.update(chunk, chunk.length);
+        long after = mx.getThreadAllocatedBytes(id);
+
+        e.finalize();
+        assertEquals((long)(WARMUP + CHUNKS) * chunk.length,
+                e.getSamplesEncoded());
+        return after - before;
+    }
+
+    @Test
+    public void flacDoesNotAllocatePerChunk() throws IOException {
+        assertEquals(0, allocated(Format.FLAC, 0));
+    }
+
+    @Test
+    public void threadedFlacDoesNotAllocatePerChunk() throws IOException {
+        assertEquals(0, allocated(Format.FLAC, 2));
+    }
+
+    @Test
+    public void wavDoesNotAllocatePerChunk() throws IOException {
+        assertEquals(0, allocated(Format.WAV, 0));
+    }
+}
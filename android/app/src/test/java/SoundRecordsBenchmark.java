@@ -0,0 +1,95 @@
+package io.rootmos.audiojournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reading and writing a catalog's worth of sounds as SoundRecords versus
+// as their JSON sidecars (the way the Catalog and the bucket's manifests
+// used to), e.g.: ./gradlew jmh -Pjmh=SoundRecordsBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundRecordsBenchmark {
+    @Param({ "1000" })
+    public int sounds;
+
+    private List<Sound> ss;
+    private List<String> jsons;
+    private byte[] records;
+
+    @Setup
+    public void setup() throws IOException {
+        OffsetDateTime t = OffsetDateTime.parse("2020-04-12T21:03:17+02:00");
+        ss = new ArrayList<>(sounds);
+        jsons = new ArrayList<>(sounds);
+        for(int i = 0; i < sounds; i++) {
+            byte[] sha1 = new byte[20];
+            for(int j = 0; j < sha1.length; j++) sha1[j] = (byte)(i * 31 + j);
+
+            String json = "{\"title\":\"take " + i + "\","
+                + "\"artist\":\"artist\",\"composer\":\"composer\","
+                + "\"sha1\":\"" + Hex.encodeHexString(sha1) + "\","
+                + "\"url\":null,\"filename\":\"take-" + i + ".flac\","
+                + "\"mimetype\":\"audio/x-flac\","
+                + "\"date\":\"" + t.minusHours(i * 7) + "\","
+                + "\"length\":" + (60 + i % 600) + ","
+                + (i % 4 != 0 ? "\"session\":\"session " + i / 3 + "\","
+                        + "\"part\":" + (i % 3 + 1) + "," : "")
+                + "\"loudness\":{\"integrated\":" + (-20 + i % 10) + ","
+                + "\"range\":5,\"peak\":0.8,\"true_peak\":0.9,"
+                + "\"rms\":[-20,-14]}}";
+            Sound s = Sound.fromJSON(json);
+            ss.add(s);
+            jsons.add(s.toJSON());
+        }
+        records = writeRecords();
+    }
+
+    @Benchmark
+    public List<Sound> readRecords() throws IOException {
+        return SoundRecords.readList(new ByteArrayInputStream(records));
+    }
+
+    @Benchmark
+    public byte[] writeRecords() throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        SoundRecords.writeList(bs, ss);
+        return bs.toByteArray();
+    }
+
+    @Benchmark
+    public List<Sound> fromJSON() {
+        List<Sound> r = new ArrayList<>(jsons.size());
+        for(String j : jsons) r.add(Sound.fromJSON(j));
+        return r;
+    }
+
+    @Benchmark
+    public List<String> toJSON() {
+        List<String> r = new ArrayList<>(ss.size());
+        for(Sound s : ss) r.add(s.toJSON());
+        return r;
+    }
+}
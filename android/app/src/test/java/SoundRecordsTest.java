@@ -0,0 +1,154 @@
+package io.rootmos.audiojournal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.junit.Test;
+
+public class SoundRecordsTest {
+    private static byte[] sha1(int seed) {
+        byte[] bs = new byte[20];
+        for(int i = 0; i < bs.length; i++) bs[i] = (byte)(seed * 31 + i);
+        return bs;
+    }
+
+    // a take as the recorder renders it
+    private static Sound take(int seed, String title) {
+        Sound s = new Sound(title, "artist", "composer", sha1(seed), 61.5f);
+        s.setDateTime(OffsetDateTime.parse("2020-04-12T21:03:17.25+02:00"));
+        s.setMimeType("audio/x-flac");
+        return s;
+    }
+
+    // a sidecar from before the time of day was recorded
+    private static Sound dated(int seed, String date) {
+        return Sound.fromJSON("{\"title\":\"old\",\"artist\":\"artist\","
+                + "\"composer\":\"composer\",\"length\":12.25,"
+                + "\"sha1\":\"" + Hex.encodeHexString(sha1(seed)) + "\","
+                + "\"url\":null,\"filename\":\"old.mp3\","
+                + "\"date\":\"" + date + "\"}");
+    }
+
+    private static List<Sound> roundTrip(Sound... ss) throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        SoundRecords.writeList(bs, Arrays.asList(ss));
+        return SoundRecords.readList(
+                new ByteArrayInputStream(bs.toByteArray()));
+    }
+
+    private static void assertSameSound(Sound e, Sound a) {
+        assertArrayEquals(e.getSHA1(), a.getSHA1());
+        assertEquals(e.getTitle(), a.getTitle());
+        assertEquals(e.getArtist(), a.getArtist());
+        assertEquals(e.getComposer(), a.getComposer());
+        assertEquals(e.getDuration(), a.getDuration(), 0);
+        assertEquals(e.getFilename(), a.getFilename());
+        assertEquals(e.getMimeType(), a.getMimeType());
+        assertEquals(e.getSession(), a.getSession());
+        assertEquals(e.getPart(), a.getPart());
+        assertEquals(e.getDateTime(), a.getDateTime());
+        assertEquals(e.getDate(), a.getDate());
+        assertEquals(e.toJSON(), a.toJSON());
+    }
+
+    @Test
+    public void roundTripsATake() throws IOException {
+        Sound s = take(1, "morning");
+        List<Sound> ss = roundTrip(s);
+        assertEquals(1, ss.size());
+        assertSameSound(s, ss.get(0));
+        assertNull(ss.get(0).getLoudness());
+        assertNull(ss.get(0).getSession());
+    }
+
+    @Test
+    public void roundTripsADateWithoutATime() throws IOException {
+        Sound s = dated(2, "2019-12-31");
+        assertNull(s.getDateTime());
+
+        Sound r = roundTrip(s).get(0);
+        assertSameSound(s, r);
+        assertNull(r.getDateTime());
+        assertEquals(LocalDate.of(2019, 12, 31), r.getDate());
+    }
+
+    @Test
+    public void roundTripsTheLoudness() throws IOException {
+        Sound s = take(3, "loud");
+        s.setLoudness(new Loudness(-14.5, 6.25, 0.9, 1.05,
+                    new double[] { 0.1, 0.25 }));
+        Sound q = take(4, "silent");
+        q.setLoudness(new Loudness(Double.NaN, Double.NaN, 0, 0,
+                    new double[0]));
+
+        List<Sound> ss = roundTrip(s, q);
+        assertSameSound(s, ss.get(0));
+        assertSameSound(q, ss.get(1));
+
+        Loudness l = ss.get(0).getLoudness();
+        assertEquals(-14.5, l.getIntegrated(), 0);
+        assertEquals(6.25, l.getRange(), 0);
+        assertEquals(0.9, l.getPeak(), 0);
+        assertEquals(1.05, l.getTruePeak(), 0);
+        assertArrayEquals(new double[] { 0.1, 0.25 }, l.getRMS(), 0);
+
+        l = ss.get(1).getLoudness();
+        assertNotNull(l);
+        assertTrue(Double.isNaN(l.getIntegrated()));
+        assertTrue(Double.isNaN(l.getRange()));
+        assertEquals(0, l.getRMS().length);
+    }
+
+    @Test
+    public void roundTripsTheSession() throws IOException {
+        Sound a = take(5, "session, part 1");
+        a.setSession("2020-04-12T21:03:17", 1);
+        Sound b = take(6, "session, part 2");
+        b.setSession("2020-04-12T21:03:17", 2);
+
+        List<Sound> ss = roundTrip(a, b);
+        assertSameSound(a, ss.get(0));
+        assertSameSound(b, ss.get(1));
+        assertEquals(2, ss.get(1).getPart());
+    }
+
+    @Test
+    public void internsRepeatedStrings() throws IOException {
+        Sound a = take(7, "same");
+        Sound b = take(8, "same");
+        b.setSession("session", 1);
+        Sound c = dated(9, "2018-01-01");
+
+        List<Sound> ss = roundTrip(a, b, c);
+        assertSameSound(a, ss.get(0));
+        assertSameSound(b, ss.get(1));
+        assertSameSound(c, ss.get(2));
+
+        // later occurrences refer back to the string read first
+        assertSame(ss.get(0).getTitle(), ss.get(1).getTitle());
+        assertSame(ss.get(0).getArtist(), ss.get(1).getArtist());
+        assertSame(ss.get(0).getArtist(), ss.get(2).getArtist());
+        assertSame(ss.get(0).getComposer(), ss.get(2).getComposer());
+        assertSame(ss.get(0).getMimeType(), ss.get(1).getMimeType());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWhatIsNotAList() throws IOException {
+        SoundRecords.readList(new ByteArrayInputStream(
+                    "{\"title\":\"json\"}".getBytes("UTF-8")));
+    }
+}